@@ -1,12 +1,62 @@
 package carsharing;
+import org.h2.jdbcx.JdbcConnectionPool;
 import org.h2.jdbcx.JdbcDataSource;
 
 import javax.sql.DataSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 /**
@@ -36,12 +86,41 @@ public class Main {
     // Database client instance
     private static DbClient dbClient = null;
 
+    // Router over the database shards (a single shard unless -shards N is given)
+    private static ShardRouter shardRouter = null;
+
+    // Connections per shard - pooled when -poolSize N is given, also the size of the async DAO executor
+    private static int connectionPoolSize = 10;
+
     // DAO instances for managing different entities
     private static DeveloperDao companyDao = null;
     private static DeveloperDao carDao = null;
     private static DeveloperDao customerDao = null;
     private static DeveloperDao rentalDao = null;
 
+    // Snapshot of companies/cars for list reads (only when -snapshot <stalenessMillis> is given)
+    private static SnapshotStore snapshotStore = null;
+
+    // Publisher of DAO write events (only when -changeLog <file> is given)
+    private static ChangeEventBus changeEvents = null;
+
+    // Waitlist for sold out companies (only when -waitlist is given)
+    private static RentalWaitlist waitlist = null;
+
+    // Non-blocking DAO facades (only when -async <timeoutMillis> is given)
+    private static AsyncDaoExecutor asyncExecutor = null;
+    private static AsyncDao asyncCompanyDao = null;
+    private static AsyncDao asyncCarDao = null;
+    private static AsyncDao asyncCustomerDao = null;
+    private static long asyncTimeoutMillis = 0;
+
+    // Deadline of the async DAO call running on the current thread, applied to the statements it runs
+    private static final ThreadLocal<QueryDeadline> queryDeadline = new ThreadLocal<>();
+
+    // Customer to car index for rental-state checks (only when -rentalIndex heap|offheap is given)
+    private static RentalIndex rentalIndex = null;
+    private static PublishingCustomerDao customerPublisher = null;
+
     /**
      *  Class for running SQL statements or getting db data and returning it as class objects
      */
@@ -56,18 +135,74 @@ public class Main {
             this.dataSource = dataSource;
         }
 
+        /**
+         * Create a statement, limited to the time left for the async DAO call running on this thread (if any).
+         * The statement is cancelled when the call times out; the JDBC query timeout only counts whole seconds,
+         * so it is set as well just as a backstop.  H2 keeps the timeout on the connection, so it is reset to none
+         * for calls without a deadline.
+         * @param con - Connection to create the statement on
+         * @return - Statement with the query timeout applied
+         * @throws SQLException - if the call's deadline already passed or the statement cannot be created
+         */
+        private Statement createStatement(Connection con) throws SQLException {
+            QueryDeadline deadline = queryDeadline.get();
+            if (deadline == null) {
+                Statement statement = con.createStatement();
+                statement.setQueryTimeout(0);
+                return statement;
+            }
+            long remaining = deadline.remainingNanos();
+            if (remaining <= 0) {
+                throw new SQLTimeoutException("Async DAO call timed out before it ran");
+            }
+            Statement statement = con.createStatement();
+            statement.setQueryTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + 999_999_999L)));
+            deadline.track(statement);
+            return statement;
+        }
+
+        /**
+         * Open a connection for callers that need prepared statements or transactions (bulk import/export)
+         * @return - Connection from the DataSource, closed by the caller
+         * @throws SQLException - if the connection cannot be opened
+         */
+        Connection getConnection() throws SQLException {
+            return dataSource.getConnection();
+        }
+
         /**
          * Execute a direct SQL query - used for table creation - DO NOT USE WITH USER INPUT
          * @param str - a string of SQL data
+         * @return - number of rows changed, or -1 if the statement failed
          */
-        public void run(String str) {
+        public int run(String str) {
             try (Connection con = dataSource.getConnection(); // Statement creation
-                 Statement statement = con.createStatement()
+                 Statement statement = createStatement(con)
+            ) {
+                return statement.executeUpdate(str); // Statement execution
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return -1;
+        }
+
+        /**
+         * Execute an INSERT into a table with a generated id
+         * @param str - a string of SQL data
+         * @return - the generated id of the new row, or -1 if the insert failed
+         */
+        public int insert(String str) {
+            try (Connection con = dataSource.getConnection();
+                 Statement statement = createStatement(con)
             ) {
-                statement.executeUpdate(str); // Statement execution
+                statement.executeUpdate(str, Statement.RETURN_GENERATED_KEYS);
+                try (ResultSet keys = statement.getGeneratedKeys()) {
+                    return keys.next() ? keys.getInt(1) : -1;
+                }
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            return -1;
         }
 
         /**
@@ -97,7 +232,7 @@ public class Main {
             List<Developer> developers = new ArrayList<>();
 
             try (Connection con = dataSource.getConnection();
-                 Statement statement = con.createStatement();
+                 Statement statement = createStatement(con);
                  ResultSet resultSetItem = statement.executeQuery(query)
             ) {
                 while (resultSetItem.next()) {
@@ -214,9 +349,9 @@ public class Main {
         List<Developer> findAll();
         Developer findById(int id);
         List<Developer> findByParentId(int id);
-        void add(Developer developer);
-        void update(Developer developer);
-        void deleteById(int id);
+        int add(Developer developer);
+        boolean update(Developer developer);
+        boolean deleteById(int id);
     }
 
     //-----------------------------------------------------------------------------------------------------------------
@@ -234,11 +369,22 @@ public class Main {
         private static final String UPDATE_DATA = "UPDATE company SET name = '%s' WHERE id = %d";
         private static final String DELETE_DATA = "DELETE FROM company WHERE id = %d";
 
+        private final DbClient client;
+
         /**
          * Class constructor that creates the company table in the database
          */
         public CompanyDao() {
-            dbClient.run(CREATE_TABLE);
+            this(dbClient);
+        }
+
+        /**
+         * Class constructor that creates the company table in the database behind a specific DbClient
+         * @param client - DbClient of the database (or shard) to run statements against
+         */
+        public CompanyDao(DbClient client) {
+            this.client = client;
+            client.run(CREATE_TABLE);
         }
 
         /**
@@ -246,9 +392,10 @@ public class Main {
          * @param developer - Developer object containing the name of the company to add
          */
         @Override
-        public void add(Developer developer) {
-            dbClient.run(String.format(INSERT_DATA, developer.getName()));
-            System.out.println("The company was created!");
+        public int add(Developer developer) {
+            int id = client.insert(String.format(INSERT_DATA, developer.getName()));
+            if (id > 0) {System.out.println("The company was created!");}
+            return id;
         }
 
         /**
@@ -257,7 +404,7 @@ public class Main {
          */
         @Override
         public List<Developer> findAll() {
-            List<Developer> found = dbClient.selectForList(SELECT_ALL, 2);
+            List<Developer> found = client.selectForList(SELECT_ALL, 2);
             if (found.isEmpty()) {
                 System.out.println("The company list is empty!");
             } else {
@@ -281,7 +428,7 @@ public class Main {
          */
         @Override
         public Developer findById(int id) {
-            return dbClient.select(String.format(SELECT, id), 2);
+            return client.select(String.format(SELECT, id), 2);
         }
 
         /**
@@ -299,16 +446,16 @@ public class Main {
          * @param developer - Developer object containing the new name and current id of the company to update
          */
         @Override
-        public void update(Developer developer) {
-            dbClient.run(String.format(UPDATE_DATA, developer.getName(), developer.getId()));}
+        public boolean update(Developer developer) {
+            return client.run(String.format(UPDATE_DATA, developer.getName(), developer.getId())) > 0;}
 
         /**
          * Delete a company by its id number
          * @param id - integer id number of the company id
          */
         @Override
-        public void deleteById(int id) {
-            dbClient.run(String.format(DELETE_DATA, id));
+        public boolean deleteById(int id) {
+            return client.run(String.format(DELETE_DATA, id)) > 0;
         }
     }
 
@@ -329,11 +476,22 @@ public class Main {
         private static final String UPDATE_DATA = "UPDATE car SET name = '%s', company_id = %d WHERE id = %d";
         private static final String DELETE_DATA = "DELETE FROM car WHERE id = %d";
 
+        private final DbClient client;
+
         /**
          * Class constructor that creates the car table in the database
          */
         public CarDao() {
-            dbClient.run(CREATE_TABLE);
+            this(dbClient);
+        }
+
+        /**
+         * Class constructor that creates the car table in the database behind a specific DbClient
+         * @param client - DbClient of the database (or shard) to run statements against
+         */
+        public CarDao(DbClient client) {
+            this.client = client;
+            client.run(CREATE_TABLE);
         }
 
         /**
@@ -341,9 +499,10 @@ public class Main {
          * @param developer - Developer object containing the name of the company to add
          */
         @Override
-        public void add(Developer developer) {
-            dbClient.run(String.format(INSERT_DATA, developer.getName(), developer.getParent()));
-            System.out.println("The car was created!");
+        public int add(Developer developer) {
+            int id = client.insert(String.format(INSERT_DATA, developer.getName(), developer.getParent()));
+            if (id > 0) {System.out.println("The car was created!");}
+            return id;
         }
 
         /**
@@ -352,7 +511,7 @@ public class Main {
          */
         @Override
         public List<Developer> findAll() {
-            List<Developer> found = dbClient.selectForList(SELECT_ALL, 3);
+            List<Developer> found = client.selectForList(SELECT_ALL, 3);
             if (found.isEmpty()) {
                 System.out.println("The car list is empty!");
             } else {
@@ -374,7 +533,7 @@ public class Main {
          */
         @Override
         public Developer findById(int id) {
-            return dbClient.select(String.format(SELECT, id), 3);
+            return client.select(String.format(SELECT, id), 3);
         }
 
         /**
@@ -384,7 +543,7 @@ public class Main {
          */
         @Override
         public List<Developer> findByParentId(int parentId) {
-            List<Developer> found = dbClient.selectForList(String.format(PARENT_SELECT, parentId), 3);
+            List<Developer> found = client.selectForList(String.format(PARENT_SELECT, parentId), 3);
             if (found.isEmpty()) {
                 System.out.println("The car list is empty!");
             } else {
@@ -405,16 +564,17 @@ public class Main {
          * @param developer - Developer object containing the new name and current id of the car to update
          */
         @Override
-        public void update(Developer developer) {
-            dbClient.run(String.format(UPDATE_DATA, developer.getName(), developer.getParent(), developer.getId()));}
+        public boolean update(Developer developer) {
+            return client.run(String.format(UPDATE_DATA, developer.getName(), developer.getParent(),
+                    developer.getId())) > 0;}
 
         /**
          * Delete a car by its id number
          * @param id - integer id number of the car id
          */
         @Override
-        public void deleteById(int id) {
-            dbClient.run(String.format(DELETE_DATA, id));
+        public boolean deleteById(int id) {
+            return client.run(String.format(DELETE_DATA, id)) > 0;
         }
     }
 
@@ -435,11 +595,22 @@ public class Main {
         private static final String UPDATE_DATA = "UPDATE customer SET name = '%s', rented_car_id = %d WHERE id = %d";
         private static final String DELETE_DATA = "DELETE FROM customer WHERE id = %d";
 
+        private final DbClient client;
+
         /**
          * Class constructor that creates the customer table in the database
          */
         public CustomerDao() {
-            dbClient.run(CREATE_TABLE);
+            this(dbClient);
+        }
+
+        /**
+         * Class constructor that creates the customer table in the database behind a specific DbClient
+         * @param client - DbClient of the database (or shard) to run statements against
+         */
+        public CustomerDao(DbClient client) {
+            this.client = client;
+            client.run(CREATE_TABLE);
         }
 
         /**
@@ -447,9 +618,10 @@ public class Main {
          * @param developer - Developer object containing the name for the customer
          */
         @Override
-        public void add(Developer developer) {
-            dbClient.run(String.format(INSERT_DATA, developer.getName()));
-            System.out.println("The customer was created!");
+        public int add(Developer developer) {
+            int id = client.insert(String.format(INSERT_DATA, developer.getName()));
+            if (id > 0) {System.out.println("The customer was created!");}
+            return id;
         }
 
         /**
@@ -458,7 +630,7 @@ public class Main {
          */
         @Override
         public List<Developer> findAll() {
-            List<Developer> found = dbClient.selectForList(SELECT_ALL, 3);
+            List<Developer> found = client.selectForList(SELECT_ALL, 3);
             if (found.isEmpty()) {
                 System.out.println("The customer list is empty!");
             } else {
@@ -481,7 +653,7 @@ public class Main {
          */
         @Override
         public Developer findById(int id) {
-            return dbClient.select(String.format(SELECT, id), 3);
+            return client.select(String.format(SELECT, id), 3);
         }
 
         /**
@@ -492,7 +664,7 @@ public class Main {
          */
         @Override
         public List<Developer> findByParentId(int parentId) {
-            List<Developer> found = dbClient.selectForList(String.format(PARENT_SELECT, parentId), 3);
+            List<Developer> found = client.selectForList(String.format(PARENT_SELECT, parentId), 3);
             if (found.isEmpty()) {
                 System.out.println("The car list is empty!");
             } else {
@@ -512,11 +684,12 @@ public class Main {
          * @param developer - Developer object containing the new name and current id of the car to update
          */
         @Override
-        public void update(Developer developer) {
+        public boolean update(Developer developer) {
             if (developer.getParent() == 0) {
-            dbClient.run("UPDATE customer SET rented_car_id = NULL WHERE id = " + developer.getId());
+            return client.run("UPDATE customer SET rented_car_id = NULL WHERE id = " + developer.getId()) > 0;
         } else {
-            dbClient.run(String.format(UPDATE_DATA, developer.getName(), developer.getParent(), developer.getId()));
+            return client.run(String.format(UPDATE_DATA, developer.getName(), developer.getParent(),
+                    developer.getId())) > 0;
             }
             }
 
@@ -525,8 +698,8 @@ public class Main {
          * @param id - integer id number of the customer id
          */
         @Override
-        public void deleteById(int id) {
-            dbClient.run(String.format(DELETE_DATA, id));
+        public boolean deleteById(int id) {
+            return client.run(String.format(DELETE_DATA, id)) > 0;
         }
     }
 
@@ -544,16 +717,26 @@ public class Main {
         private static final String UPDATE_DATA = "UPDATE car SET name = '%s', company_id = %d WHERE id = %d";
         private static final String DELETE_DATA = "DELETE FROM car WHERE id = %d";
 
-        // NO class constructor to create table - uses car table
+        private final DbClient client;
+
+        // NO table creation in the constructors - uses car table
+        public RentalDao() {
+            this(dbClient);
+        }
+
+        public RentalDao(DbClient client) {
+            this.client = client;
+        }
 
         /**
          * UNUSED - USE CarDao CLASS TO CREATE CAR RECORDS
          * @param developer - Developer object containing the name for the customer
          */
         @Override
-        public void add(Developer developer) {
-            dbClient.run(String.format(INSERT_DATA, developer.getName(), developer.getParent()));
-            System.out.println("The car was created!");
+        public int add(Developer developer) {
+            int id = client.insert(String.format(INSERT_DATA, developer.getName(), developer.getParent()));
+            if (id > 0) {System.out.println("The car was created!");}
+            return id;
         }
 
         /**
@@ -562,7 +745,7 @@ public class Main {
          */
         @Override
         public List<Developer> findAll() {
-            List<Developer> found = dbClient.selectForList(SELECT_ALL, 3);
+            List<Developer> found = client.selectForList(SELECT_ALL, 3);
             if (found.isEmpty()) {
                 System.out.println("The car list is empty!");
             } else {
@@ -583,7 +766,7 @@ public class Main {
          */
         @Override
         public Developer findById(int id) {
-            return dbClient.select(String.format(SELECT, id), 3);
+            return client.select(String.format(SELECT, id), 3);
         }
 
         /**
@@ -592,7 +775,7 @@ public class Main {
          */
         @Override
         public List<Developer> findByParentId(int parentId) {
-            List<Developer> found = dbClient.selectForList(String.format(PARENT_SELECT, parentId), 3);
+            List<Developer> found = client.selectForList(String.format(PARENT_SELECT, parentId), 3);
             if (found.isEmpty()) {
                 System.out.println("The car list is empty!");
             } else {
@@ -613,215 +796,3403 @@ public class Main {
          * @param developer - Developer object containing the new name and current id of the car to update
          */
         @Override
-        public void update(Developer developer) {
-            dbClient.run(String.format(UPDATE_DATA, developer.getName(), developer.getParent(), developer.getId()));}
+        public boolean update(Developer developer) {
+            return client.run(String.format(UPDATE_DATA, developer.getName(), developer.getParent(),
+                    developer.getId())) > 0;}
 
         /**
          * UNUSED - USE CustomerDao CLASS TO DELETE CUSTOMER RECORDS
          */
         @Override
-        public void deleteById(int id) {
-            dbClient.run(String.format(DELETE_DATA, id));
+        public boolean deleteById(int id) {
+            return client.run(String.format(DELETE_DATA, id)) > 0;
         }
     }
 
     //-----------------------------------------------------------------------------------------------------------------
 
     /**
-     * Create the database connection and store dataSource connection in static variable for use elsewhere
+     *  Class that routes statements to one of N H2 databases (shards) partitioned by company id.  The company and
+     *  customer tables are replicated to every shard so foreign keys stay local, while each company's cars - and the
+     *  rented_car_id of the customers renting them - only live on the company's shard.  Car ids are allocated with a
+     *  stride of N so the shard holding a car can be found from its id alone.  A router with a single shard is used
+     *  when sharding is disabled so fan-out callers do not need to special case it.
      */
-    class getDbClient {
-
-        public getDbClient(String[] args) {
-            // get command line argument if present to append to filename
-            String filename = "databaseName";
-            for (int i = 0; i < args.length; i++) {
-                if (Objects.equals(args[i], "-databaseFileName")) {
-                    i++;
-                    filename = args[i];
-                    break;
-                }
-            }
-            String CONNECTION_URL = "jdbc:h2:./src/carsharing/db/";
+    public class ShardRouter {
+        private static final String CREATE_LAYOUT = "CREATE TABLE IF NOT EXISTS shard_layout " +
+                "(shard_count INTEGER NOT NULL, shard_index INTEGER NOT NULL);";
+        private static final String SELECT_LAYOUT = "SELECT shard_count, shard_index FROM shard_layout";
+        private static final String INSERT_LAYOUT = "INSERT INTO shard_layout (shard_count, shard_index) " +
+                "VALUES (%d, %d)";
 
-            /* Database credentials - NO CREDENTIALS
-            // private static final String USER = "sa";
-            // private static final String PASS = "";  */
-
-            JdbcDataSource dataSource = new JdbcDataSource();
-            dataSource.setUrl(CONNECTION_URL + filename);
+        private final List<DbClient> shards;
+        private final ExecutorService fanOutPool;
 
-            dbClient = new DbClient(dataSource);
+        /**
+         * Constructor for ShardRouter
+         * @param shards - DbClient objects for each shard, the index in the list is the shard number
+         */
+        public ShardRouter(List<DbClient> shards) {
+            this.shards = List.copyOf(shards);
+            this.fanOutPool = Executors.newFixedThreadPool(this.shards.size(), runnable -> {
+                Thread thread = new Thread(runnable, "shard-fan-out");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
-    }
-
-    //-----------------------------------------------------------------------------------------------------------------
 
-    /**  Main function for running program (singleton instantiation)
-     *
-     */
-    public static void main(String[] args) {
-        Main prog = new Main();
-        prog.run(args);
-    }
+        /**
+         * Read the layout recorded in a shard file
+         * @param shard - DbClient of the shard
+         * @return - int array of the shard count and shard number, or null if none is recorded yet
+         */
+        private int[] readLayout(DbClient shard) {
+            try (Connection con = shard.getConnection();
+                 Statement statement = con.createStatement();
+                 ResultSet resultSet = statement.executeQuery(SELECT_LAYOUT)
+            ) {
+                return resultSet.next() ? new int[]{resultSet.getInt(1), resultSet.getInt(2)} : null;
+            } catch (SQLException e) {
+                throw new IllegalStateException("The shard layout cannot be read", e);
+            }
+        }
 
-    /**
-     * Create DbClient, DAO objects and run main menu
-     * @param args - sys args for getting db filename (if present in args)
-     */
-    void run (String[] args) {
-        new getDbClient(args);
-        companyDao = new CompanyDao();
-        carDao = new CarDao();
-        customerDao = new CustomerDao();
-        rentalDao = new RentalDao();
-        menuMain();
-    }
+        /**
+         * Copy a row just added on shard 0 to the other shards.  If a copy fails the row is deleted again from
+         * every shard that has it, so the replicated table never differs between shards.
+         * @param insertReplica - INSERT statement copying the row with its id
+         * @param delete - DELETE statement removing the row
+         * @return - true if every shard now has the row, false if it was removed everywhere
+         */
+        boolean replicate(String insertReplica, String delete) {
+            for (int i = 1; i < shards.size(); i++) {
+                if (shards.get(i).run(insertReplica) != 1) {
+                    for (int j = i - 1; j >= 0; j--) {
+                        if (shards.get(j).run(delete) < 0) {
+                            throw new IllegalStateException("Shard " + j + " kept a row that shard " + i +
+                                    " refused - the shards differ until restarted");
+                        }
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
 
-    /**
-     * Tiered menu system that exits only on user input = 0
-     */
-    void menuMain () {
-        int option = -1;
-        while (option != 0) {
-            System.out.println("\n1. Log in as a manager");
-            System.out.println("2. Log in as a customer");
-            System.out.println("3. Create a customer");
-            System.out.println("0. Exit");
-            option = scanner.nextInt();
-            switch (option) {
-                case 1 -> companyMenu();
-                case 2 -> customerMenu();
-                case 3 -> {
-                    System.out.println("\nEnter the customer name: ");
-                    String strip = scanner.nextLine();
-                    String name = scanner.nextLine();
-                    customerDao.add(new Developer(name));
+        /**
+         * Bring the other shards' copies of a replicated table in line with shard 0 - a crash between an insert on
+         * shard 0 and its copies leaves rows missing on some shards, which would fail every later foreign key
+         * @param table - name of the replicated table
+         * @param insertReplica - INSERT format copying a row by id and name
+         * @param delete - DELETE format removing a row by id
+         */
+        void repairReplicas(String table, String insertReplica, String delete) {
+            String query = "SELECT id, name FROM " + table + " ORDER BY id";
+            List<Developer> primaryRows = shards.get(0).selectForList(query, 2);
+            Set<Integer> primaryIds = new HashSet<>();
+            for (Developer row : primaryRows) {
+                primaryIds.add(row.getId());
+            }
+            int repaired = 0;
+            for (int i = 1; i < shards.size(); i++) {
+                DbClient shard = shards.get(i);
+                Set<Integer> ids = new HashSet<>();
+                for (Developer row : shard.selectForList(query, 2)) {
+                    ids.add(row.getId());
+                    if (!primaryIds.contains(row.getId()) && shard.run(String.format(delete, row.getId())) > 0) {
+                        repaired++;
+                    }
+                }
+                for (Developer row : primaryRows) {
+                    if (!ids.contains(row.getId()) &&
+                            shard.run(String.format(insertReplica, row.getId(), row.getName())) > 0) {
+                        repaired++;
+                    }
                 }
             }
+            if (repaired > 0) {
+                System.out.println("Repaired " + repaired + " " + table + " rows that differed between shards");
+            }
         }
-    }
 
-    /**
-     * Company menu options - list/create companies
-     */
-    void companyMenu() {
-        int action = -1;
-        while (action != 0) {
-            System.out.println("\n1. Company list");
-            System.out.println("2. Create a company");
-            System.out.println("0. Back");
-            action = scanner.nextInt();
-            switch (action) {
-                case 1 -> {carMenu();
+        /**
+         * Record the shard count and number in every shard file, refusing to open files created with another
+         * layout - the modulo mapping of ids to shards is only valid for the count the data was written with
+         */
+        void checkLayout() {
+            List<int[]> layouts = new ArrayList<>();
+            for (DbClient shard : shards) {
+                shard.run(CREATE_LAYOUT);
+                layouts.add(readLayout(shard));
+            }
+            for (int i = 0; i < shards.size(); i++) {
+                int[] layout = layouts.get(i);
+                if (layout != null && (layout[0] != shards.size() || layout[1] != i)) {
+                    throw new IllegalStateException("Shard " + i + " was created as shard " + layout[1] + " of " +
+                            layout[0] + " - reopen the database with -shards " + layout[0]);
                 }
-                case 2 -> {
-                    System.out.println("\nEnter the company name: ");
-                    String strip = scanner.nextLine();
-                    String name = scanner.nextLine();
-                    companyDao.add(new Developer(name));
+            }
+            for (int i = 0; i < shards.size(); i++) {
+                if (layouts.get(i) == null) {
+                    shards.get(i).run(String.format(INSERT_LAYOUT, shards.size(), i));
                 }
             }
         }
-    }
 
-    /**
-     * Car menu options - list/create cars linked to a company
-     */
-    void carMenu() {
-        List<Developer> companies = companyDao.findAll();
-        if (companies.isEmpty()) {return;}
-        int option1 = scanner.nextInt();
-        if (option1 == 0) {return;}
-        Developer company = companies.get(option1 - 1);
-        int option2 = -1;
-        System.out.println("\n'" + company.getName() + "' company");
-        while (option2 != 0) {
-            System.out.println("1. Car list");
-            System.out.println("2. Create a car");
-            System.out.println("0. Back");
-            option2 = scanner.nextInt();
-            switch (option2) {
-                case 0 -> {return;}
-                case 1 -> {
-                    carDao.findByParentId(company.getId());
-                    System.out.println(); }
-                case 2 -> {
-                    System.out.println("\nEnter the car name: ");
-                    String strip = scanner.nextLine();
-                    String name = scanner.nextLine();
-                    carDao.add(new Developer(name, company.getId()));
-                    System.out.println();}
+        /**
+         * Getter for the number of shards
+         * @return - int of shard count
+         */
+        int size() {return shards.size();}
+
+        /**
+         * Getter for a shard by its number
+         * @param index - integer shard number
+         * @return - DbClient of the shard
+         */
+        DbClient shard(int index) {return shards.get(index);}
+
+        /**
+         * Shard number of a company - company ids map onto shards by modulo so the mapping never changes
+         * @param companyId - integer id of the company
+         * @return - int shard number
+         */
+        int shardForCompany(int companyId) {
+            return Math.floorMod(companyId, shards.size());
+        }
+
+        /**
+         * Shard number of a car - car ids are allocated so that id modulo N is the shard of the car's company
+         * @param carId - integer id of the car
+         * @return - int shard number
+         */
+        int shardForCar(int carId) {
+            return Math.floorMod(carId, shards.size());
+        }
+
+        /**
+         * Start one shard's part of a fan-out.  An async DAO call runs it on its own thread instead: the async
+         * executor already supplies the parallelism (and has more threads than this pool), and its deadline is
+         * thread-bound, so the shard queries stay under the call's timeout.
+         * @param query - the shard query
+         * @return - CompletableFuture of the query's result
+         */
+        private <T> CompletableFuture<T> onShard(Supplier<T> query) {
+            if (queryDeadline.get() != null) {
+                return CompletableFuture.completedFuture(query.get());
             }
+            return CompletableFuture.supplyAsync(query, fanOutPool);
         }
-    }
 
-    /**
-     * Customer menu options - rent/return/list cars from specific companies
-     */
-    void customerMenu() {
-        List<Developer> customerList = customerDao.findAll();
-        if (customerList.isEmpty()) {return;}
-        int input = scanner.nextInt();
-        if (input == 0) {return;}
-        Developer customer = customerList.get(input - 1);
-        int customerId = customer.getId();
-        int option2 = -1;
-        while (option2 != 0) {
-            System.out.println("\n1. Rent a car");
-            System.out.println("2. Return a rented car");
-            System.out.println("3. My rented car");
-            System.out.println("0. Back");
-            option2 = scanner.nextInt();
-            switch (option2) {
-                case 1 -> rentAcar(customerId);
-                case 2 -> {
-                    customer = customerDao.findById(customerId);
-                    if (customer.getParent() == 0) {
-                        System.out.println("You didn't rent a car!");
-                        break;
-                    } else {
-                        customerDao.update(new Developer(customer.getId(), customer.getName(), 0));}
-                        System.out.println("You've returned a rented car!");
-                    }
-                case 3 -> {
-                    customer = customerDao.findById(customerId);
-                    if (customer.getParent() == 0) {
-                        System.out.println("You didn't rent a car!");
-                    } else {
-                        Developer car = carDao.findById(customer.getParent());
-                        Developer company = companyDao.findById(car.getParent());
-                        System.out.println("\nYour rented car:");
-                        System.out.println(car.getName());
-                        System.out.println("Company:");
-                        System.out.println(company.getName());
-                    }
+        /**
+         * Run a query on every shard in parallel and merge the rows by id.  Rows replicated on several shards are
+         * collapsed into one, preferring the copy with a parent set (the customer row on its rented car's shard).
+         * @param query - string of SQL text using a formatted string for injection prevention
+         * @param choice - the number of columns in the table to set into class objects
+         * @return - List of Developer objects ordered by id
+         */
+        List<Developer> fanOut(String query, int choice) {
+            List<CompletableFuture<List<Developer>>> futures = new ArrayList<>();
+            for (DbClient shard : shards) {
+                futures.add(onShard(() -> shard.selectForList(query, choice)));
+            }
+            TreeMap<Integer, Developer> merged = new TreeMap<>();
+            for (CompletableFuture<List<Developer>> future : futures) {
+                for (Developer developer : future.join()) {
+                    merged.merge(developer.getId(), developer, (a, b) -> a.getParent() > 0 ? a : b);
                 }
             }
+            return new ArrayList<>(merged.values());
+        }
+
+        /**
+         * Execute a statement on every shard in parallel - used for replicated tables
+         * @param str - a string of SQL data
+         * @return - true if the statement succeeded and changed rows on every shard
+         */
+        boolean broadcast(String str) {
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (DbClient shard : shards) {
+                futures.add(onShard(() -> shard.run(str)));
+            }
+            boolean changed = true;
+            for (CompletableFuture<Integer> future : futures) {
+                changed &= future.join() > 0;
+            }
+            return changed;
         }
     }
 
+    //-----------------------------------------------------------------------------------------------------------------
+
     /**
-     * Rent-a-car menu - to rent a car from a specific company listing only un-rented cars
-     * @param customerId
+     *  Class that replicates the company table to every shard - ids are generated by shard 0.
      */
-    void rentAcar(int customerId) {
-        Developer customer = customerDao.findById(customerId);
-        if (customer.getParent() == 0) {
-            List<Developer> companies = companyDao.findAll();
-            int option = scanner.nextInt();
-            if (option == 0) {return;}
-            Developer selectedCompany = companies.get(option - 1);
+    public class ShardedCompanyDao implements DeveloperDao {
 
-            List<Developer> cars = rentalDao.findByParentId(selectedCompany.getId());
-            if (cars.isEmpty()) {return;}
-            option = scanner.nextInt();
-            if (option == 0) {return;}
-            Developer selectedCar = cars.get(option - 1);
-            customerDao.update(new Developer(customer.getId(), customer.getName(), selectedCar.getId()));
-            System.out.println("You rented '" + selectedCar.getName() + "'");
-        } else {
-            System.out.println("You've already rented a car!");
+        private static final String INSERT_REPLICA = "INSERT INTO company (id, name) VALUES (%d, '%s')";
+        private static final String UPDATE_DATA = "UPDATE company SET name = '%s' WHERE id = %d";
+        private static final String DELETE_DATA = "DELETE FROM company WHERE id = %d";
+
+        private final ShardRouter router;
+        private final CompanyDao primary;
+
+        /**
+         * Class constructor that creates the company table on every shard
+         * @param router - ShardRouter holding the shards
+         */
+        public ShardedCompanyDao(ShardRouter router) {
+            this.router = router;
+            for (int i = 1; i < router.size(); i++) {
+                new CompanyDao(router.shard(i));
+            }
+            this.primary = new CompanyDao(router.shard(0));
+            router.repairReplicas("company", INSERT_REPLICA, DELETE_DATA);
+        }
+
+        /**
+         * Add the company on shard 0 then copy it with the same id to the other shards
+         * @param developer - Developer object containing the name of the company to add
+         * @return - int id of the new company, or -1 if it could not be added on every shard
+         */
+        @Override
+        public int add(Developer developer) {
+            int id = primary.add(developer);
+            if (id < 0) {return id;}
+            if (!router.replicate(String.format(INSERT_REPLICA, id, developer.getName()),
+                    String.format(DELETE_DATA, id))) {
+                System.out.println("The company could not be copied to every shard and was removed again!");
+                return -1;
+            }
+            return id;
+        }
+
+        @Override
+        public List<Developer> findAll() {
+            return primary.findAll();
+        }
+
+        @Override
+        public Developer findById(int id) {
+            return primary.findById(id);
+        }
+
+        @Override
+        public List<Developer> findByParentId(int id) {
+            return findAll();
+        }
+
+        @Override
+        public boolean update(Developer developer) {
+            return router.broadcast(String.format(UPDATE_DATA, developer.getName(), developer.getId()));
+        }
+
+        @Override
+        public boolean deleteById(int id) {
+            return router.broadcast(String.format(DELETE_DATA, id));
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Class that stores each car on the shard of its company.
+     */
+    public class ShardedCarDao implements DeveloperDao {
+
+        private static final String SELECT_ALL = "SELECT * FROM car ORDER BY id";
+        private static final String SELECT_BY_NAME = "SELECT * FROM car WHERE name = '%s'";
+        private static final String NEXT_ID = "SELECT COALESCE(MAX(id), %d) + %d, '' FROM car";
+        private static final String INSERT_DATA = "INSERT INTO car (id, name, company_id) VALUES (%d, '%s', %d)";
+
+        private final ShardRouter router;
+        private final List<CarDao> shardDaos = new ArrayList<>();
+
+        /**
+         * Class constructor that creates the car table on every shard
+         * @param router - ShardRouter holding the shards
+         */
+        public ShardedCarDao(ShardRouter router) {
+            this.router = router;
+            for (int i = 0; i < router.size(); i++) {
+                shardDaos.add(new CarDao(router.shard(i)));
+            }
+        }
+
+        /**
+         * Add a car on its company's shard using the next id of the shard's stride (shard, shard + N, ...).  The
+         * UNIQUE name constraint only covers one shard, so names are checked across all shards under the router
+         * lock first.
+         * @param developer - Developer object containing the name and company id of the car to add
+         */
+        @Override
+        public int add(Developer developer) {
+            int shard = router.shardForCompany(developer.getParent());
+            DbClient client = router.shard(shard);
+            int id;
+            synchronized (router) {
+                if (!router.fanOut(String.format(SELECT_BY_NAME, developer.getName()), 3).isEmpty()) {
+                    System.out.println("The car name is already taken!");
+                    return -1;
+                }
+                int base = shard == 0 ? 0 : shard - router.size();
+                id = client.select(String.format(NEXT_ID, base, router.size()), 2).getId();
+                if (client.run(String.format(INSERT_DATA, id, developer.getName(), developer.getParent())) < 1) {
+                    return -1;
+                }
+            }
+            System.out.println("The car was created!");
+            return id;
+        }
+
+        /**
+         * Find all cars on every shard and return them as Developer objects ordered by id
+         * @return List of Developer objects with all cars
+         */
+        @Override
+        public List<Developer> findAll() {
+            List<Developer> found = router.fanOut(SELECT_ALL, 3);
+            if (found.isEmpty()) {
+                System.out.println("The car list is empty!");
+            } else {
+                System.out.println("\nCar list: ");
+                for (Developer developer : found) {
+                    System.out.println(developer.getId() + ". " + developer.getName());
+                }
+                System.out.println("0. Back");
+            }
+            return found;
+        }
+
+        @Override
+        public Developer findById(int id) {
+            return shardDaos.get(router.shardForCar(id)).findById(id);
+        }
+
+        @Override
+        public List<Developer> findByParentId(int parentId) {
+            return shardDaos.get(router.shardForCompany(parentId)).findByParentId(parentId);
+        }
+
+        /**
+         * Update a car on its shard - moving a car to a company on another shard is not supported
+         * @param developer - Developer object containing the new name, company id and current id of the car
+         */
+        @Override
+        public boolean update(Developer developer) {
+            int shard = router.shardForCar(developer.getId());
+            if (shard != router.shardForCompany(developer.getParent())) {
+                throw new IllegalStateException("Car cannot be moved to a company on another shard");
+            }
+            return shardDaos.get(shard).update(developer);
+        }
+
+        @Override
+        public boolean deleteById(int id) {
+            return shardDaos.get(router.shardForCar(id)).deleteById(id);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Class that replicates the customer table to every shard - the rented_car_id is only set on the shard of the
+     *  rented car so the rental anti-join and foreign key stay local to the car's company.
+     */
+    public class ShardedCustomerDao implements DeveloperDao {
+
+        private static final String SELECT_ALL = "SELECT * FROM customer ORDER BY id";
+        private static final String SELECT = "SELECT * FROM customer WHERE id = %d";
+        private static final String INSERT_REPLICA = "INSERT INTO customer (id, name) VALUES (%d, '%s')";
+        private static final String CLEAR_RENTAL = "UPDATE customer SET rented_car_id = NULL WHERE id = %d";
+        private static final String DELETE_DATA = "DELETE FROM customer WHERE id = %d";
+
+        private final ShardRouter router;
+        private final List<CustomerDao> shardDaos = new ArrayList<>();
+
+        /**
+         * Class constructor that creates the customer table on every shard
+         * @param router - ShardRouter holding the shards
+         */
+        public ShardedCustomerDao(ShardRouter router) {
+            this.router = router;
+            for (int i = 0; i < router.size(); i++) {
+                shardDaos.add(new CustomerDao(router.shard(i)));
+            }
+            router.repairReplicas("customer", INSERT_REPLICA, DELETE_DATA);
+        }
+
+        /**
+         * Add the customer on shard 0 then copy it with the same id to the other shards
+         * @param developer - Developer object containing the name for the customer
+         * @return - int id of the new customer, or -1 if it could not be added on every shard
+         */
+        @Override
+        public int add(Developer developer) {
+            int id = shardDaos.get(0).add(developer);
+            if (id < 0) {return id;}
+            if (!router.replicate(String.format(INSERT_REPLICA, id, developer.getName()),
+                    String.format(DELETE_DATA, id))) {
+                System.out.println("The customer could not be copied to every shard and was removed again!");
+                return -1;
+            }
+            return id;
+        }
+
+        /**
+         * Selects all customers from every shard, merging the replicas so each customer carries its rented car
+         * @return List of Developer objects containing all customers
+         */
+        @Override
+        public List<Developer> findAll() {
+            List<Developer> found = router.fanOut(SELECT_ALL, 3);
+            if (found.isEmpty()) {
+                System.out.println("The customer list is empty!");
+            } else {
+                int i = 1;
+                System.out.println("\nCustomer list: ");
+                for (Developer developer : found) {
+                    System.out.println(i + ". " + developer.getName());
+                    i++;
+                }
+                System.out.println("0. Back");
+            }
+            return found;
+        }
+
+        @Override
+        public Developer findById(int id) {
+            List<Developer> found = router.fanOut(String.format(SELECT, id), 3);
+            return found.isEmpty() ? null : found.get(0);
+        }
+
+        @Override
+        public List<Developer> findByParentId(int parentId) {
+            return shardDaos.get(router.shardForCar(parentId)).findByParentId(parentId);
+        }
+
+        /**
+         * Rent (parent > 0) on the car's shard or return (parent == 0) on every shard
+         * @param developer - Developer object containing the name, rented car id and current id of the customer
+         */
+        @Override
+        public boolean update(Developer developer) {
+            if (developer.getParent() == 0) {
+                return router.broadcast(String.format(CLEAR_RENTAL, developer.getId()));
+            } else {
+                return shardDaos.get(router.shardForCar(developer.getParent())).update(developer);
+            }
+        }
+
+        @Override
+        public boolean deleteById(int id) {
+            return router.broadcast(String.format(DELETE_DATA, id));
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Class that lists the un-rented cars of a company from the company's shard.
+     */
+    public class ShardedRentalDao implements DeveloperDao {
+
+        private final ShardRouter router;
+        private final DeveloperDao cars;
+        private final List<RentalDao> shardDaos = new ArrayList<>();
+
+        /**
+         * Class constructor
+         * @param router - ShardRouter holding the shards
+         * @param cars - ShardedCarDao used for the car operations that RentalDao shares with CarDao
+         */
+        public ShardedRentalDao(ShardRouter router, DeveloperDao cars) {
+            this.router = router;
+            this.cars = cars;
+            for (int i = 0; i < router.size(); i++) {
+                shardDaos.add(new RentalDao(router.shard(i)));
+            }
+        }
+
+        @Override
+        public List<Developer> findByParentId(int parentId) {
+            return shardDaos.get(router.shardForCompany(parentId)).findByParentId(parentId);
+        }
+
+        @Override
+        public int add(Developer developer) {return cars.add(developer);}
+
+        @Override
+        public List<Developer> findAll() {return cars.findAll();}
+
+        @Override
+        public Developer findById(int id) {return cars.findById(id);}
+
+        @Override
+        public boolean update(Developer developer) {return cars.update(developer);}
+
+        @Override
+        public boolean deleteById(int id) {return cars.deleteById(id);}
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Immutable in-memory copy of the companies, cars and un-rented cars used to serve list-heavy menus.  Writes
+     *  produce a patched copy that shares every list it does not change.
+     */
+    public class ReadSnapshot {
+        private static final String SELECT_COMPANIES = "SELECT * FROM company ORDER BY id";
+        private static final String SELECT_CARS = "SELECT * FROM car ORDER BY id";
+        private static final String SELECT_AVAILABLE = "SELECT a.* FROM car a LEFT JOIN customer b ON a.id = " +
+                "b.rented_car_id WHERE b.id IS NULL ORDER BY a.id";
+        private static final String SELECT_COMPANY_CARS = "SELECT * FROM car WHERE company_id = %d ORDER BY id";
+        private static final String SELECT_COMPANY_AVAILABLE = "SELECT a.* FROM car a LEFT JOIN customer b ON " +
+                "a.id = b.rented_car_id WHERE b.id IS NULL AND a.company_id = %d ORDER BY a.id";
+
+        private final List<Developer> companies;
+        private final Map<Integer, Developer> companiesById;
+        private final Map<Integer, Developer> carsById;
+        private final Map<Integer, List<Developer>> carsByCompany;
+        private final Map<Integer, List<Developer>> availableByCompany;
+        private final long loadedAt;
+
+        /**
+         * Class constructor that loads the snapshot from every shard of the router - companies are replicated, so
+         * they are read from the first shard only
+         * @param router - ShardRouter holding the primary databases
+         */
+        public ReadSnapshot(ShardRouter router) {
+            this.loadedAt = System.nanoTime();
+            this.companies = List.copyOf(router.shard(0).selectForList(SELECT_COMPANIES, 2));
+            List<Developer> cars = router.fanOut(SELECT_CARS, 3);
+            this.companiesById = indexById(companies);
+            this.carsById = indexById(cars);
+            this.carsByCompany = groupByParent(cars);
+            this.availableByCompany = groupByParent(router.fanOut(SELECT_AVAILABLE, 3));
+        }
+
+        private ReadSnapshot(ReadSnapshot base, List<Developer> companies, Map<Integer, Developer> carsById,
+                             Map<Integer, List<Developer>> carsByCompany,
+                             Map<Integer, List<Developer>> availableByCompany) {
+            this.loadedAt = base.loadedAt;
+            this.companies = companies;
+            this.companiesById = companies == base.companies ? base.companiesById : indexById(companies);
+            this.carsById = carsById;
+            this.carsByCompany = carsByCompany;
+            this.availableByCompany = availableByCompany;
+        }
+
+        private Map<Integer, Developer> indexById(List<Developer> developers) {
+            Map<Integer, Developer> index = new HashMap<>();
+            for (Developer developer : developers) {
+                index.put(developer.getId(), developer);
+            }
+            return Map.copyOf(index);
+        }
+
+        private Map<Integer, List<Developer>> groupByParent(List<Developer> developers) {
+            Map<Integer, List<Developer>> grouped = new HashMap<>();
+            for (Developer developer : developers) {
+                grouped.computeIfAbsent(developer.getParent(), key -> new ArrayList<>()).add(developer);
+            }
+            grouped.replaceAll((key, list) -> List.copyOf(list));
+            return Map.copyOf(grouped);
+        }
+
+        private Map<Integer, List<Developer>> replaced(Map<Integer, List<Developer>> lists, int companyId,
+                                                       List<Developer> list) {
+            Map<Integer, List<Developer>> copy = new HashMap<>(lists);
+            copy.put(companyId, List.copyOf(list));
+            return Map.copyOf(copy);
+        }
+
+        /**
+         * Copy of the snapshot with a new company list
+         * @param companies - List of every company
+         * @return - ReadSnapshot sharing all car lists with this one
+         */
+        ReadSnapshot withCompanies(List<Developer> companies) {
+            return new ReadSnapshot(this, List.copyOf(companies), carsById, carsByCompany, availableByCompany);
+        }
+
+        /**
+         * Copy of the snapshot with new un-rented cars for one company - what a rent or return changes
+         * @param companyId - integer id of the company
+         * @param available - List of the company's un-rented cars
+         * @return - ReadSnapshot sharing every other list with this one
+         */
+        ReadSnapshot withAvailableCars(int companyId, List<Developer> available) {
+            return new ReadSnapshot(this, companies, carsById, carsByCompany,
+                    replaced(availableByCompany, companyId, available));
+        }
+
+        /**
+         * Copy of the snapshot with new cars and un-rented cars for one company - what a car write changes
+         * @param companyId - integer id of the company
+         * @param cars - List of the company's cars
+         * @param available - List of the company's un-rented cars
+         * @return - ReadSnapshot sharing every other company's lists with this one
+         */
+        ReadSnapshot withCars(int companyId, List<Developer> cars, List<Developer> available) {
+            Map<Integer, Developer> carIndex = new HashMap<>(carsById);
+            for (Developer car : getCars(companyId)) {
+                carIndex.remove(car.getId());
+            }
+            for (Developer car : cars) {
+                carIndex.put(car.getId(), car);
+            }
+            return new ReadSnapshot(this, companies, Map.copyOf(carIndex), replaced(carsByCompany, companyId, cars),
+                    replaced(availableByCompany, companyId, available));
+        }
+
+        List<Developer> getCompanies() {return companies;}
+
+        Developer getCompany(int id) {return companiesById.get(id);}
+
+        Developer getCar(int id) {return carsById.get(id);}
+
+        List<Developer> getCars(int companyId) {return carsByCompany.getOrDefault(companyId, List.of());}
+
+        List<Developer> getAvailableCars(int companyId) {
+            return availableByCompany.getOrDefault(companyId, List.of());
+        }
+
+        /**
+         * Getter for the age of the snapshot - a patched copy keeps the age of the full load it was made from
+         * @return - long of milliseconds since the snapshot was loaded
+         */
+        long ageMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadedAt);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Class that keeps a periodically refreshed ReadSnapshot.  Snapshots are swapped through a volatile reference
+     *  so readers never lock; a reader only loads from the primary itself if the background refresh has fallen
+     *  behind the staleness bound.  Writes patch just the lists of the company they touched (one indexed query on
+     *  its shard), so the writer sees its own change without reloading every table.
+     */
+    public class SnapshotStore {
+        private final ShardRouter router;
+        private final long maxStalenessMillis;
+        private final ScheduledExecutorService refresher;
+        private final Object reloadLock = new Object();
+        private volatile ReadSnapshot current;
+        // companies patched while a full reload runs, carried over onto it (guarded by this)
+        private final Set<Integer> patchedCompanies = new HashSet<>();
+        private boolean companiesPatched = false;
+
+        /**
+         * Class constructor that loads the first snapshot and schedules refreshes at half the staleness bound
+         * @param router - ShardRouter holding the primary databases
+         * @param maxStalenessMillis - the oldest a snapshot may be before a reader refreshes it
+         */
+        public SnapshotStore(ShardRouter router, long maxStalenessMillis) {
+            this.router = router;
+            this.maxStalenessMillis = maxStalenessMillis;
+            this.current = new ReadSnapshot(router);
+            this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "snapshot-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, maxStalenessMillis / 2);
+            refresher.scheduleWithFixedDelay(() -> refreshIfOlderThan(period), period, period,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Get the current snapshot, reloading it first if it is older than the staleness bound
+         * @return - ReadSnapshot no older than the staleness bound
+         */
+        ReadSnapshot get() {
+            ReadSnapshot snapshot = current;
+            if (snapshot.ageMillis() > maxStalenessMillis) {
+                refreshIfOlderThan(maxStalenessMillis);
+                snapshot = current;
+            }
+            return snapshot;
+        }
+
+        /**
+         * Load a new snapshot unless one newer than the given age was swapped in while waiting for the lock - so a
+         * reader that waited behind the background reload does not load the tables a second time.  Writers can
+         * keep patching while the tables are read; their companies keep the patched lists in the new snapshot.
+         * @param maxAgeMillis - the age above which the snapshot is reloaded
+         */
+        void refreshIfOlderThan(long maxAgeMillis) {
+            synchronized (reloadLock) {
+                if (current.ageMillis() <= maxAgeMillis) {return;}
+                synchronized (this) {
+                    patchedCompanies.clear();
+                    companiesPatched = false;
+                }
+                ReadSnapshot loaded;
+                try {
+                    loaded = new ReadSnapshot(router);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                synchronized (this) {
+                    ReadSnapshot patched = current;
+                    for (int companyId : patchedCompanies) {
+                        loaded = loaded.withCars(companyId, patched.getCars(companyId),
+                                patched.getAvailableCars(companyId));
+                    }
+                    if (companiesPatched) {loaded = loaded.withCompanies(patched.getCompanies());}
+                    current = loaded;
+                }
+            }
+        }
+
+        /**
+         * Re-read the company list after a company write
+         */
+        synchronized void refreshCompanies() {
+            current = current.withCompanies(router.shard(0).selectForList(ReadSnapshot.SELECT_COMPANIES, 2));
+            companiesPatched = true;
+        }
+
+        /**
+         * Re-read one company's un-rented cars after a rent or return
+         * @param companyId - integer id of the company
+         */
+        synchronized void refreshAvailableCars(int companyId) {
+            current = current.withAvailableCars(companyId, selectForCompany(ReadSnapshot.SELECT_COMPANY_AVAILABLE,
+                    companyId));
+            patchedCompanies.add(companyId);
+        }
+
+        /**
+         * Re-read one company's cars and un-rented cars after a car write
+         * @param companyId - integer id of the company
+         */
+        synchronized void refreshCars(int companyId) {
+            current = current.withCars(companyId, selectForCompany(ReadSnapshot.SELECT_COMPANY_CARS, companyId),
+                    selectForCompany(ReadSnapshot.SELECT_COMPANY_AVAILABLE, companyId));
+            patchedCompanies.add(companyId);
+        }
+
+        private List<Developer> selectForCompany(String query, int companyId) {
+            DbClient client = router.shard(router.shardForCompany(companyId));
+            return client.selectForList(String.format(query, companyId), 3);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Class that serves company reads from the snapshot and sends writes to the primary company DAO.
+     */
+    public class SnapshotCompanyDao implements DeveloperDao {
+        private final DeveloperDao primary;
+        private final SnapshotStore store;
+
+        public SnapshotCompanyDao(DeveloperDao primary, SnapshotStore store) {
+            this.primary = primary;
+            this.store = store;
+        }
+
+        @Override
+        public List<Developer> findAll() {
+            List<Developer> found = store.get().getCompanies();
+            if (found.isEmpty()) {
+                System.out.println("The company list is empty!");
+            } else {
+                int i = 1;
+                System.out.println("\nChoose the company: ");
+                for (Developer developer : found) {
+                    System.out.println(i + ". " + developer.getName());
+                    i++;
+                }
+                System.out.println("0. Back");
+            }
+            return found;
+        }
+
+        @Override
+        public Developer findById(int id) {
+            Developer found = store.get().getCompany(id);
+            return found != null ? found : primary.findById(id);
+        }
+
+        @Override
+        public List<Developer> findByParentId(int id) {
+            return findAll();
+        }
+
+        @Override
+        public int add(Developer developer) {
+            int id = primary.add(developer);
+            if (id > 0) {store.refreshCompanies();}
+            return id;
+        }
+
+        @Override
+        public boolean update(Developer developer) {
+            boolean updated = primary.update(developer);
+            if (updated) {store.refreshCompanies();}
+            return updated;
+        }
+
+        @Override
+        public boolean deleteById(int id) {
+            boolean deleted = primary.deleteById(id);
+            if (deleted) {store.refreshCompanies();}
+            return deleted;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Class that serves car reads from the snapshot and sends writes to the primary car DAO.
+     */
+    public class SnapshotCarDao implements DeveloperDao {
+        private final DeveloperDao primary;
+        private final SnapshotStore store;
+
+        public SnapshotCarDao(DeveloperDao primary, SnapshotStore store) {
+            this.primary = primary;
+            this.store = store;
+        }
+
+        /**
+         * Listing every car is rare (manager only) - read it from the primary
+         */
+        @Override
+        public List<Developer> findAll() {
+            return primary.findAll();
+        }
+
+        @Override
+        public Developer findById(int id) {
+            Developer found = store.get().getCar(id);
+            return found != null ? found : primary.findById(id);
+        }
+
+        @Override
+        public List<Developer> findByParentId(int parentId) {
+            List<Developer> found = store.get().getCars(parentId);
+            if (found.isEmpty()) {
+                System.out.println("The car list is empty!");
+            } else {
+                int i = 1;
+                System.out.println("\nCar list: ");
+                for (Developer developer : found) {
+                    System.out.println(i + ". " + developer.getName());
+                    i++;
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public int add(Developer developer) {
+            int id = primary.add(developer);
+            if (id > 0) {store.refreshCars(developer.getParent());}
+            return id;
+        }
+
+        @Override
+        public boolean update(Developer developer) {
+            Developer previous = findById(developer.getId());
+            boolean updated = primary.update(developer);
+            if (updated) {
+                store.refreshCars(developer.getParent());
+                if (previous != null && previous.getParent() != developer.getParent()) {
+                    store.refreshCars(previous.getParent());
+                }
+            }
+            return updated;
+        }
+
+        @Override
+        public boolean deleteById(int id) {
+            Developer previous = findById(id);
+            boolean deleted = primary.deleteById(id);
+            if (deleted && previous != null) {store.refreshCars(previous.getParent());}
+            return deleted;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Class that lists un-rented cars from the snapshot - the listing may be stale, so rentals are validated
+     *  against the primary before they are written (see isRentedOnPrimary).
+     */
+    public class SnapshotRentalDao implements DeveloperDao {
+        private final DeveloperDao primary;
+        private final SnapshotStore store;
+
+        public SnapshotRentalDao(DeveloperDao primary, SnapshotStore store) {
+            this.primary = primary;
+            this.store = store;
+        }
+
+        @Override
+        public List<Developer> findByParentId(int parentId) {
+            List<Developer> found = store.get().getAvailableCars(parentId);
+            if (found.isEmpty()) {
+                System.out.println("The car list is empty!");
+            } else {
+                int i = 1;
+                System.out.println("\nCar list: ");
+                for (Developer developer : found) {
+                    System.out.println(i + ". " + developer.getName());
+                    i++;
+                }
+                System.out.println("0. Back");
+            }
+            return found;
+        }
+
+        @Override
+        public List<Developer> findAll() {return primary.findAll();}
+
+        @Override
+        public Developer findById(int id) {return primary.findById(id);}
+
+        @Override
+        public int add(Developer developer) {return primary.add(developer);}
+
+        @Override
+        public boolean update(Developer developer) {return primary.update(developer);}
+
+        @Override
+        public boolean deleteById(int id) {return primary.deleteById(id);}
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Kinds of changes published for DAO writes
+     */
+    public enum ChangeType {CREATE, UPDATE, DELETE, RENT, RETURN}
+
+    /**
+     *  Immutable event describing a single DAO write.
+     */
+    public class ChangeEvent {
+        private final long sequence;
+        private final long timestamp;
+        private final ChangeType type;
+        private final String table;
+        private final int id;
+        private final String name;
+        private final int parent;
+
+        /**
+         * Constructor for ChangeEvent
+         * @param sequence - position of the event in the stream, starting at 0
+         * @param timestamp - epoch milliseconds of the write
+         * @param type - ChangeType of the write
+         * @param table - name of the table written
+         * @param id - id of the row or -1 when the database generated it
+         * @param name - name of the row
+         * @param parent - company id of a car or car id of a rental/return, -1 if none
+         */
+        public ChangeEvent(long sequence, long timestamp, ChangeType type, String table, int id, String name,
+                           int parent) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.table = table;
+            this.id = id;
+            this.name = name;
+            this.parent = parent;
+        }
+
+        long getSequence() {return sequence;}
+
+        long getTimestamp() {return timestamp;}
+
+        ChangeType getType() {return type;}
+
+        String getTable() {return table;}
+
+        int getId() {return id;}
+
+        String getName() {return name;}
+
+        int getParent() {return parent;}
+
+        /**
+         * Encode the event as one tab separated line for the change log
+         * @return - String of the encoded event without a line break
+         */
+        String toLogLine() {
+            String safeName = name == null ? "" : name.replace("\\", "\\\\").replace("\t", "\\t")
+                    .replace("\n", "\\n");
+            return sequence + "\t" + timestamp + "\t" + type + "\t" + table + "\t" + id + "\t" + parent + "\t" +
+                    safeName;
+        }
+
+        @Override
+        public String toString() {
+            return toLogLine();
+        }
+    }
+
+    /**
+     *  Decode a change log line written by ChangeEvent.toLogLine
+     * @param line - String of the encoded event
+     * @return - ChangeEvent decoded from the line
+     * @throws IllegalArgumentException - if the line is not a complete event
+     */
+    ChangeEvent parseChangeEvent(String line) {
+        String[] fields = line.split("\t", 7);
+        if (fields.length != 7) {
+            throw new IllegalArgumentException("Malformed change log line: " + line);
+        }
+        StringBuilder name = new StringBuilder();
+        String encoded = fields[6];
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c == '\\' && i + 1 < encoded.length()) {
+                char next = encoded.charAt(++i);
+                name.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                name.append(c);
+            }
+        }
+        return new ChangeEvent(Long.parseLong(fields[0]), Long.parseLong(fields[1]), ChangeType.valueOf(fields[2]),
+                fields[3], Integer.parseInt(fields[4]), name.toString(), Integer.parseInt(fields[5]));
+    }
+
+    /**
+     *  Subscriber to the change-event stream - events are delivered in order, in batches, on the dispatch thread
+     */
+    public interface ChangeListener {
+        void onEvents(List<ChangeEvent> events);
+
+        default void close() {}
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  In-process publisher of DAO change events.  Writers claim a slot of a bounded ring buffer with a single CAS
+     *  and never take a lock; one dispatch thread drains the ring in batches and hands each batch to every
+     *  subscriber.  When the ring is full the writer either waits for space (BLOCK) or drops the event and counts
+     *  it (DROP).
+     */
+    public class ChangeEventBus {
+        private final AtomicReferenceArray<ChangeEvent> ring;
+        private final int mask;
+        private final int batchSize;
+        private final boolean dropWhenFull;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+        private final Thread dispatcher;
+        private volatile long tail;
+        private volatile boolean running = true;
+
+        /**
+         * Constructor for ChangeEventBus - starts the dispatch thread
+         * @param capacity - number of ring slots, rounded up to a power of two
+         * @param batchSize - the most events delivered to a subscriber at once
+         * @param dropWhenFull - true to drop events when the ring is full, false to make writers wait
+         * @param firstSequence - sequence number of the first event, to continue an existing change log
+         */
+        public ChangeEventBus(int capacity, int batchSize, boolean dropWhenFull, long firstSequence) {
+            int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            this.ring = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+            this.batchSize = batchSize;
+            this.dropWhenFull = dropWhenFull;
+            this.head.set(firstSequence);
+            this.tail = firstSequence;
+            this.dispatcher = new Thread(this::dispatch, "change-event-dispatch");
+            this.dispatcher.setDaemon(true);
+            this.dispatcher.start();
+        }
+
+        /**
+         * Add a subscriber - it receives the events published after it was added
+         * @param listener - ChangeListener to deliver batches to
+         */
+        void subscribe(ChangeListener listener) {
+            listeners.add(listener);
+        }
+
+        /**
+         * Publish an event for a write
+         * @param type - ChangeType of the write
+         * @param table - name of the table written
+         * @param id - id of the row or -1 when the database generated it
+         * @param name - name of the row
+         * @param parent - company id of a car or car id of a rental/return, -1 if none
+         * @return - false if the event was dropped because the ring was full
+         */
+        boolean publish(ChangeType type, String table, int id, String name, int parent) {
+            while (true) {
+                long sequence = head.get();
+                if (sequence - tail > mask) {
+                    if (dropWhenFull || !running) {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                    LockSupport.parkNanos(10_000);
+                } else if (head.compareAndSet(sequence, sequence + 1)) {
+                    ChangeEvent event = new ChangeEvent(sequence, System.currentTimeMillis(), type, table, id,
+                            name, parent);
+                    ring.lazySet((int) sequence & mask, event);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Getter for the number of events dropped because the ring was full
+         * @return - long of dropped events
+         */
+        long getDropped() {return dropped.get();}
+
+        /**
+         * Getter for the number of published events not yet delivered
+         * @return - long of pending events
+         */
+        long getPending() {return head.get() - tail;}
+
+        private void dispatch() {
+            List<ChangeEvent> batch = new ArrayList<>(batchSize);
+            while (running || tail < head.get()) {
+                long next = tail;
+                while (batch.size() < batchSize) {
+                    int slot = (int) next & mask;
+                    ChangeEvent event = ring.get(slot);
+                    if (event == null) {break;}
+                    ring.lazySet(slot, null);
+                    batch.add(event);
+                    next++;
+                }
+                if (batch.isEmpty()) {
+                    LockSupport.parkNanos(1_000_000);
+                    continue;
+                }
+                tail = next;
+                List<ChangeEvent> delivered = List.copyOf(batch);
+                batch.clear();
+                for (ChangeListener listener : listeners) {
+                    try {
+                        listener.onEvents(delivered);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stop accepting waits, deliver the events still in the ring and close every subscriber
+         */
+        void close() {
+            running = false;
+            LockSupport.unpark(dispatcher);
+            try {
+                dispatcher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            listeners.forEach(ChangeListener::close);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Subscriber that appends every event to a durable change log file so consumers can replay the stream.
+     */
+    public class ChangeLogFile implements ChangeListener {
+        private final Path path;
+        private final FileChannel channel;
+        private final long nextSequence;
+
+        /**
+         * Constructor for ChangeLogFile - opens (or creates) the log for appending.  A crash while a batch was being
+         * written can leave a partial last line; everything after the last complete event is cut off so new events
+         * start on a fresh line.
+         * @param path - Path of the change log file
+         * @throws IOException - if the file cannot be opened or repaired
+         */
+        public ChangeLogFile(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.nextSequence = recover();
+            channel.position(channel.size());
+        }
+
+        /**
+         * Find the end of the last complete, readable event and truncate anything after it
+         * @return - long of the sequence number following that event, 0 for an empty log
+         * @throws IOException - if the log cannot be read or truncated
+         */
+        private long recover() throws IOException {
+            long next = 0;
+            long validEnd = 0;
+            long offset = 0;
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+                int b;
+                while ((b = in.read()) != -1) {
+                    offset++;
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    if (line.size() > 0) {
+                        try {
+                            next = parseChangeEvent(line.toString(StandardCharsets.UTF_8)).getSequence() + 1;
+                        } catch (IllegalArgumentException e) {
+                            break;
+                        }
+                    }
+                    line.reset();
+                    validEnd = offset;
+                }
+            }
+            long size = channel.size();
+            if (validEnd < size) {
+                System.out.println("Change log: dropped " + (size - validEnd) + " bytes of an incomplete tail, " +
+                        "continuing from sequence " + next);
+                channel.truncate(validEnd);
+                channel.force(false);
+            }
+            return next;
+        }
+
+        /**
+         * Append a batch with one write and force it to disk
+         * @param events - List of ChangeEvent objects to append
+         */
+        @Override
+        public void onEvents(List<ChangeEvent> events) {
+            StringBuilder lines = new StringBuilder();
+            for (ChangeEvent event : events) {
+                lines.append(event.toLogLine()).append('\n');
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Getter for the sequence number following the last complete event in the log
+         * @return - long of the next sequence number, 0 for an empty log
+         */
+        long nextSequence() {return nextSequence;}
+
+        /**
+         * Replay the log to a subscriber in batches, starting after a given sequence number.  Replay stops at a
+         * partial or unreadable line, which is a batch still being written.
+         * @param fromSequence - the first sequence number to deliver
+         * @param batchSize - the most events delivered at once
+         * @param listener - ChangeListener to deliver the events to
+         * @throws IOException - if the log cannot be read
+         */
+        void replay(long fromSequence, int batchSize, ChangeListener listener) throws IOException {
+            List<ChangeEvent> batch = new ArrayList<>(batchSize);
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {continue;}
+                    ChangeEvent event;
+                    try {
+                        event = parseChangeEvent(line);
+                    } catch (IllegalArgumentException e) {
+                        break;
+                    }
+                    if (event.getSequence() < fromSequence) {continue;}
+                    batch.add(event);
+                    if (batch.size() == batchSize) {
+                        listener.onEvents(List.copyOf(batch));
+                        batch.clear();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                listener.onEvents(List.copyOf(batch));
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Class that publishes a ChangeEvent after every successful write of the DAO it wraps, carrying the generated
+     *  id for creates.
+     */
+    public class PublishingDao implements DeveloperDao {
+        protected final DeveloperDao delegate;
+        protected final String table;
+        protected final ChangeEventBus bus;
+
+        /**
+         * Class constructor
+         * @param delegate - DeveloperDao to run the operations
+         * @param table - name of the table the DAO writes (company, car or customer)
+         * @param bus - ChangeEventBus to publish to
+         */
+        public PublishingDao(DeveloperDao delegate, String table, ChangeEventBus bus) {
+            this.delegate = delegate;
+            this.table = table;
+            this.bus = bus;
+        }
+
+        @Override
+        public List<Developer> findAll() {return delegate.findAll();}
+
+        @Override
+        public Developer findById(int id) {return delegate.findById(id);}
+
+        @Override
+        public List<Developer> findByParentId(int id) {return delegate.findByParentId(id);}
+
+        @Override
+        public int add(Developer developer) {
+            int id = delegate.add(developer);
+            if (id > 0) {
+                bus.publish(ChangeType.CREATE, table, id, developer.getName(), developer.getParent());
+            }
+            return id;
+        }
+
+        @Override
+        public boolean update(Developer developer) {
+            if (!delegate.update(developer)) {return false;}
+            bus.publish(ChangeType.UPDATE, table, developer.getId(), developer.getName(), developer.getParent());
+            return true;
+        }
+
+        @Override
+        public boolean deleteById(int id) {
+            if (!delegate.deleteById(id)) {return false;}
+            bus.publish(ChangeType.DELETE, table, id, null, -1);
+            return true;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Publishing DAO for customers - updates are published as RENT (a car id is set) or RETURN (the car id is
+     *  cleared).  A RETURN carries the returned car, which the return path already knows and passes to returnCar.
+     */
+    public class PublishingCustomerDao extends PublishingDao {
+
+        public PublishingCustomerDao(DeveloperDao delegate, ChangeEventBus bus) {
+            super(delegate, "customer", bus);
+        }
+
+        /**
+         * Update a customer - a return through this method has to read the customer first to learn the car, so
+         * callers that know it use returnCar instead
+         */
+        @Override
+        public boolean update(Developer developer) {
+            if (developer.getParent() == 0) {
+                Developer previous = delegate.findById(developer.getId());
+                return returnCar(developer, previous == null ? 0 : previous.getParent());
+            }
+            if (!delegate.update(developer)) {return false;}
+            bus.publish(ChangeType.RENT, table, developer.getId(), developer.getName(), developer.getParent());
+            return true;
+        }
+
+        /**
+         * Clear a customer's rented car and publish the RETURN
+         * @param customer - Developer object of the customer, its car id is ignored
+         * @param carId - integer id of the car being returned
+         * @return - true if the customer row was updated
+         */
+        boolean returnCar(Developer customer, int carId) {
+            if (!delegate.update(new Developer(customer.getId(), customer.getName(), 0))) {return false;}
+            bus.publish(ChangeType.RETURN, table, customer.getId(), customer.getName(), carId);
+            return true;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Per-company FIFO waitlist for customers who find a company sold out.  Every hand-off of a free car - to a
+     *  waiter or to a customer renting from the menu - runs under the company's queue lock, so a returned car goes
+     *  to the longest waiting customer exactly once.  Waiters are told through a CompletableFuture and a message
+     *  shown the next time they log in, instead of polling the rental list.
+     */
+    public class RentalWaitlist {
+
+        /**
+         *  A customer waiting for a car of one company
+         */
+        public class Waiter {
+            private final int customerId;
+            private final int companyId;
+            private final long enqueuedAt = System.nanoTime();
+            private final CompletableFuture<Developer> assigned = new CompletableFuture<>();
+
+            Waiter(int customerId, int companyId) {
+                this.customerId = customerId;
+                this.companyId = companyId;
+            }
+
+            int getCustomerId() {return customerId;}
+
+            int getCompanyId() {return companyId;}
+
+            /**
+             * Getter for the notification of the waiter
+             * @return - CompletableFuture completed with the car handed to the customer
+             */
+            CompletableFuture<Developer> getAssigned() {return assigned;}
+        }
+
+        private final Map<Integer, Deque<Waiter>> queues = new ConcurrentHashMap<>();
+        private final Map<Integer, String> notifications = new ConcurrentHashMap<>();
+        private final AtomicLong served = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        private Deque<Waiter> queue(int companyId) {
+            return queues.computeIfAbsent(companyId, key -> new ArrayDeque<>());
+        }
+
+        /**
+         * Add a customer to the end of a company's waitlist - joining twice keeps the original place.  The sold out
+         * decision may come from a stale listing, so the queue is drained under the same lock right away: if a car
+         * is free on the primary the waiter gets it at once (the returned Waiter is then already assigned).
+         * @param companyId - integer id of the company
+         * @param customerId - integer id of the customer
+         * @return - Waiter holding the customer's place and notification
+         */
+        Waiter join(int companyId, int customerId) {
+            Deque<Waiter> queue = queue(companyId);
+            synchronized (queue) {
+                for (Waiter waiter : queue) {
+                    if (waiter.getCustomerId() == customerId) {return waiter;}
+                }
+                Waiter waiter = new Waiter(customerId, companyId);
+                queue.addLast(waiter);
+                drainLocked(companyId, queue);
+                return waiter;
+            }
+        }
+
+        /**
+         * Getter for a customer's place in a company's waitlist
+         * @param companyId - integer id of the company
+         * @param customerId - integer id of the customer
+         * @return - int place starting at 1, or 0 if the customer is not waiting
+         */
+        int positionOf(int companyId, int customerId) {
+            Deque<Waiter> queue = queue(companyId);
+            synchronized (queue) {
+                int position = 1;
+                for (Waiter waiter : queue) {
+                    if (waiter.getCustomerId() == customerId) {return position;}
+                    position++;
+                }
+                return 0;
+            }
+        }
+
+        /**
+         * Rent a car to a customer from the menu under the company lock, refusing if the car is already taken
+         * @param companyId - integer id of the car's company
+         * @param customer - Developer object of the customer renting
+         * @param car - Developer object of the car to rent
+         * @return - true if the car was rented to the customer
+         */
+        boolean rent(int companyId, Developer customer, Developer car) {
+            Deque<Waiter> queue = queue(companyId);
+            synchronized (queue) {
+                if (isRentedOnPrimary(car.getId())) {return false;}
+                return customerDao.update(new Developer(customer.getId(), customer.getName(), car.getId()));
+            }
+        }
+
+        /**
+         * Hand the company's free cars to its waiters in FIFO order - called after a car is returned or added.
+         * Waiters that rented a car elsewhere in the meantime (or were deleted) are dropped from the queue and told
+         * so.  A rental write that fails is the car's problem, not the waiter's: that car is skipped and the waiter
+         * keeps its place for the next free car.
+         * @param companyId - integer id of the company
+         * @return - int number of cars handed out
+         */
+        int drain(int companyId) {
+            Deque<Waiter> queue = queues.get(companyId);
+            if (queue == null) {return 0;}
+            synchronized (queue) {
+                return drainLocked(companyId, queue);
+            }
+        }
+
+        private int drainLocked(int companyId, Deque<Waiter> queue) {
+            if (queue.isEmpty()) {return 0;}
+            DbClient client = shardRouter.shard(shardRouter.shardForCompany(companyId));
+            List<Developer> free = client.selectForList(String.format(RentalDao.PARENT_SELECT, companyId), 3);
+            int next = 0;
+            int handed = 0;
+            while (!queue.isEmpty() && next < free.size()) {
+                Waiter waiter = queue.peekFirst();
+                Developer customer = customerDao.findById(waiter.getCustomerId());
+                if (customer == null || customer.getParent() != 0) {
+                    queue.pollFirst();
+                    waiter.getAssigned().cancel(false);
+                    if (customer != null) {
+                        notifications.put(customer.getId(), "You rented another car, so you left the waitlist.");
+                    }
+                    continue;
+                }
+                Developer car = free.get(next++);
+                if (!customerDao.update(new Developer(customer.getId(), customer.getName(), car.getId()))) {
+                    continue;
+                }
+                queue.pollFirst();
+                handed++;
+                recordWait(System.nanoTime() - waiter.enqueuedAt);
+                notifications.put(customer.getId(), "Your waitlisted car '" + car.getName() +
+                        "' has been rented to you!");
+                waiter.getAssigned().complete(car);
+            }
+            if (handed > 0 && snapshotStore != null) {snapshotStore.refreshAvailableCars(companyId);}
+            return handed;
+        }
+
+        private void recordWait(long nanos) {
+            served.incrementAndGet();
+            totalWaitNanos.addAndGet(nanos);
+            maxWaitNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * Take the message left for a customer while they were away - a car handed to them or their removal from
+         * a waitlist
+         * @param customerId - integer id of the customer
+         * @return - String of the message or null if none is waiting to be announced
+         */
+        String takeNotification(int customerId) {
+            return notifications.remove(customerId);
+        }
+
+        /**
+         * Getter for the number of customers waiting for a company
+         * @param companyId - integer id of the company
+         * @return - int of queue depth
+         */
+        int getDepth(int companyId) {
+            Deque<Waiter> queue = queues.get(companyId);
+            if (queue == null) {return 0;}
+            synchronized (queue) {
+                return queue.size();
+            }
+        }
+
+        /**
+         * Getter for the number of customers waiting across all companies
+         * @return - int of total queue depth
+         */
+        int getTotalDepth() {
+            int total = 0;
+            for (int companyId : queues.keySet()) {
+                total += getDepth(companyId);
+            }
+            return total;
+        }
+
+        long getServed() {return served.get();}
+
+        long getAverageWaitMillis() {
+            long count = served.get();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / count);
+        }
+
+        long getMaxWaitMillis() {return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());}
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Deadline of one async DAO call and the statement it is running - a call that times out cancels that
+     *  statement, so the worker thread and its connection are freed at the deadline.
+     */
+    public class QueryDeadline {
+        private final long deadlineNanos;
+        private volatile Statement running;
+        private volatile boolean expired = false;
+
+        /**
+         * Class constructor
+         * @param deadlineNanos - System.nanoTime at which the call times out
+         */
+        public QueryDeadline(long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        long remainingNanos() {return deadlineNanos - System.nanoTime();}
+
+        /**
+         * Remember the statement the call is about to run - cancelled at once if the call already timed out
+         * @param statement - Statement created for the call
+         */
+        void track(Statement statement) {
+            running = statement;
+            if (expired) {cancel(statement);}
+        }
+
+        /**
+         * Mark the call timed out and cancel the statement it is running
+         */
+        void expire() {
+            expired = true;
+            Statement statement = running;
+            if (statement != null) {cancel(statement);}
+        }
+
+        private void cancel(Statement statement) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                // the statement already finished and was closed
+            }
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Bounded executor that runs the blocking DAO calls of AsyncDao.  It has one thread per pooled connection and
+     *  a fixed-size queue - work submitted to a full queue is rejected (and counted) instead of piling up.
+     */
+    public class AsyncDaoExecutor {
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong timedOut = new AtomicLong();
+
+        /**
+         * Constructor for AsyncDaoExecutor
+         * @param threads - number of threads, the size of the connection pool
+         * @param queueDepth - the most calls waiting for a thread
+         */
+        public AsyncDaoExecutor(int threads, int queueDepth) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueDepth), runnable -> {
+                        Thread thread = new Thread(runnable, "async-dao");
+                        thread.setDaemon(true);
+                        return thread;
+                    }, (runnable, pool) -> {
+                        rejected.incrementAndGet();
+                        throw new RejectedExecutionException("Async DAO queue is full");
+                    });
+        }
+
+        /**
+         * Run a blocking DAO call on the executor.  The deadline travels with the call: a call still queued when
+         * it expires never runs, and the statement a running call is executing is cancelled when it times out, so
+         * a timed out call gives its thread and connection back instead of holding them.
+         * @param call - the DAO call
+         * @param timeoutMillis - time allowed for the call including queueing, 0 for no timeout
+         * @return - CompletableFuture of the result, failed with RejectedExecutionException or TimeoutException
+         */
+        <T> CompletableFuture<T> submit(Supplier<T> call, long timeoutMillis) {
+            QueryDeadline deadline = new QueryDeadline(System.nanoTime() +
+                    TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+            CompletableFuture<T> future;
+            try {
+                future = CompletableFuture.supplyAsync(() -> {
+                    if (timeoutMillis <= 0) {return call.get();}
+                    if (deadline.remainingNanos() <= 0) {
+                        throw new CompletionException(new TimeoutException("Async DAO call expired in the queue"));
+                    }
+                    queryDeadline.set(deadline);
+                    try {
+                        return call.get();
+                    } finally {
+                        queryDeadline.remove();
+                    }
+                }, executor);
+            } catch (RejectedExecutionException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            if (timeoutMillis <= 0) {return future;}
+            return future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((result, error) -> {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof TimeoutException) {
+                    timedOut.incrementAndGet();
+                    deadline.expire();
+                }
+            });
+        }
+
+        int getQueueDepth() {return executor.getQueue().size();}
+
+        int getActiveCount() {return executor.getActiveCount();}
+
+        long getCompleted() {return executor.getCompletedTaskCount();}
+
+        long getRejected() {return rejected.get();}
+
+        long getTimedOut() {return timedOut.get();}
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Non-blocking facade over a DeveloperDao - every method returns at once with a CompletableFuture completed on
+     *  the shared AsyncDaoExecutor, so independent lookups can overlap and dependent ones can be chained.
+     */
+    public class AsyncDao {
+        private final DeveloperDao dao;
+        private final AsyncDaoExecutor executor;
+        private final long timeoutMillis;
+
+        /**
+         * Class constructor
+         * @param dao - DeveloperDao running the blocking calls
+         * @param executor - AsyncDaoExecutor shared by every AsyncDao
+         * @param timeoutMillis - time allowed for each call, 0 for no timeout
+         */
+        public AsyncDao(DeveloperDao dao, AsyncDaoExecutor executor, long timeoutMillis) {
+            this.dao = dao;
+            this.executor = executor;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        CompletableFuture<List<Developer>> findAll() {
+            return executor.submit(dao::findAll, timeoutMillis);
+        }
+
+        CompletableFuture<Developer> findById(int id) {
+            return executor.submit(() -> dao.findById(id), timeoutMillis);
+        }
+
+        CompletableFuture<List<Developer>> findByParentId(int id) {
+            return executor.submit(() -> dao.findByParentId(id), timeoutMillis);
+        }
+
+        CompletableFuture<Integer> add(Developer developer) {
+            return executor.submit(() -> dao.add(developer), timeoutMillis);
+        }
+
+        CompletableFuture<Boolean> update(Developer developer) {
+            return executor.submit(() -> dao.update(developer), timeoutMillis);
+        }
+
+        CompletableFuture<Boolean> deleteById(int id) {
+            return executor.submit(() -> dao.deleteById(id), timeoutMillis);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Compact binary snapshot of the company, car and customer tables for backup and fast restore.
+     *
+     *  The file is a header - magic "CSNP", version, flags (bit 0 = deflate), CRC32C of the payload, payload length
+     *  and uncompressed length - followed by the payload.  The payload holds each table as blocks of up to 64K rows
+     *  stored column by column: row count and section lengths, then the ids as varint deltas (ids are ascending and
+     *  the deltas run on across blocks), the parent ids as varints (0 = none), the name lengths as varints and the
+     *  UTF-8 name bytes.  A block with a row count of 0 ends the table.  Files are written and read through
+     *  memory-mapped channels one block at a time, so memory use does not grow with the tables.
+     */
+    public class DatasetSnapshot {
+        private static final int MAGIC = 0x43534E50; // "CSNP"
+        private static final byte VERSION = 3;
+        private static final byte FLAG_DEFLATE = 1;
+        private static final int HEADER_SIZE = 4 + 1 + 1 + 8 + 4 + 4;
+        private static final int BATCH_SIZE = 10_000;
+        private static final int BLOCK_ROWS = 64 * 1024;
+        private static final int COLUMNS = 4; // ids, parents, name lengths, names
+        private static final String[] TABLES = {"company", "car", "customer"};
+        private static final String[] SELECTS = {"SELECT id, name FROM company ORDER BY id",
+                "SELECT id, name, company_id FROM car ORDER BY id",
+                "SELECT id, name, rented_car_id FROM customer ORDER BY id"};
+        private static final String[] INSERTS = {"INSERT INTO company (id, name) VALUES (?, ?)",
+                "INSERT INTO car (id, name, company_id) VALUES (?, ?, ?)",
+                "INSERT INTO customer (id, name, rented_car_id) VALUES (?, ?, ?)"};
+        private static final String RESTART_ID = "ALTER TABLE %s ALTER COLUMN id RESTART WITH %d";
+        private static final String MAX_ID = "SELECT MAX(id) FROM %s";
+        private static final String UNIQUE_NAMES = "SELECT CONSTRAINT_NAME FROM INFORMATION_SCHEMA.CONSTRAINTS " +
+                "WHERE TABLE_NAME = '%s' AND CONSTRAINT_TYPE = 'UNIQUE' AND COLUMN_LIST = 'NAME'";
+        private static final String DROP_CONSTRAINT = "ALTER TABLE %s DROP CONSTRAINT %s";
+        private static final String ADD_UNIQUE_NAME = "ALTER TABLE %s ADD CONSTRAINT %s UNIQUE (name)";
+
+        /**
+         *  Growable byte array with varint encoding - holds one column of the block being exported
+         */
+        private class ByteSink {
+            private byte[] bytes = new byte[1024];
+            private int size = 0;
+
+            private void ensure(int extra) {
+                if (size + extra > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+                }
+            }
+
+            void putVarint(long value) {
+                ensure(10);
+                while ((value & ~0x7FL) != 0) {
+                    bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                bytes[size++] = (byte) value;
+            }
+
+            void putBytes(byte[] data) {
+                ensure(data.length);
+                System.arraycopy(data, 0, bytes, size, data.length);
+                size += data.length;
+            }
+        }
+
+        /**
+         *  Sequential writer into the memory-mapped snapshot file - values are varint-encoded into a small buffer,
+         *  optionally deflated, and copied into a mapped window that moves forward through the file as it fills
+         */
+        private class MappedWriter implements AutoCloseable {
+            private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+            private final FileChannel channel;
+            private final Deflater deflater;
+            private final CRC32C crc = new CRC32C();
+            private final byte[] buffer = new byte[64 * 1024];
+            private final byte[] chunk = new byte[64 * 1024];
+            private int buffered = 0;
+            private long rawLength = 0;
+            private MappedByteBuffer window;
+            private long windowStart = 0;
+
+            MappedWriter(FileChannel channel, boolean compress) throws IOException {
+                this.channel = channel;
+                this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+                window = channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW_SIZE);
+                window.position(HEADER_SIZE);
+            }
+
+            void putVarint(long value) throws IOException {
+                if (buffered + 10 > buffer.length) {flush();}
+                while ((value & ~0x7FL) != 0) {
+                    buffer[buffered++] = (byte) ((value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                buffer[buffered++] = (byte) value;
+            }
+
+            void putBytes(byte[] data, int length) throws IOException {
+                if (buffered + length > buffer.length) {flush();}
+                if (length > buffer.length) {
+                    encode(data, length);
+                } else {
+                    System.arraycopy(data, 0, buffer, buffered, length);
+                    buffered += length;
+                }
+            }
+
+            private void flush() throws IOException {
+                encode(buffer, buffered);
+                buffered = 0;
+            }
+
+            private void encode(byte[] data, int length) throws IOException {
+                rawLength += length;
+                if (deflater == null) {
+                    store(data, length);
+                    return;
+                }
+                deflater.setInput(data, 0, length);
+                while (!deflater.needsInput()) {
+                    store(chunk, deflater.deflate(chunk));
+                }
+            }
+
+            private void store(byte[] data, int length) throws IOException {
+                crc.update(data, 0, length);
+                int offset = 0;
+                while (offset < length) {
+                    if (!window.hasRemaining()) {
+                        window.force();
+                        windowStart += window.position();
+                        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW_SIZE);
+                    }
+                    int count = Math.min(length - offset, window.remaining());
+                    window.put(data, offset, count);
+                    offset += count;
+                }
+            }
+
+            /**
+             * Flush the remaining bytes, cut the file to the written length and fill in the header
+             * @throws IOException - if the file cannot be written or the payload is too large for the format
+             */
+            void finish() throws IOException {
+                flush();
+                if (deflater != null) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        store(chunk, deflater.deflate(chunk));
+                    }
+                }
+                window.force();
+                long end = windowStart + window.position();
+                if (end - HEADER_SIZE > Integer.MAX_VALUE - HEADER_SIZE || rawLength > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot payload is too large: " + rawLength + " bytes");
+                }
+                channel.truncate(end);
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                header.putInt(MAGIC).put(VERSION).put(deflater != null ? FLAG_DEFLATE : 0).putLong(crc.getValue())
+                        .putInt((int) (end - HEADER_SIZE)).putInt((int) rawLength);
+                header.force();
+            }
+
+            @Override
+            public void close() {
+                if (deflater != null) {deflater.end();}
+            }
+        }
+
+        /**
+         *  Sequential reader of a snapshot payload - straight from the mapped file, or inflated from it into a small
+         *  buffer as the restore consumes it
+         */
+        private class PayloadReader implements AutoCloseable {
+            private final Inflater inflater;
+            private final long rawLength;
+            private ByteBuffer window;
+            private final byte[][] sections = new byte[COLUMNS][];
+
+            PayloadReader(ByteBuffer stored, boolean deflated, long rawLength) {
+                this.rawLength = rawLength;
+                if (deflated) {
+                    inflater = new Inflater();
+                    inflater.setInput(stored);
+                    window = ByteBuffer.allocate(64 * 1024).flip();
+                } else {
+                    inflater = null;
+                    window = stored;
+                }
+            }
+
+            private void fill() throws IOException {
+                if (inflater == null) {throw new IOException("Snapshot payload is truncated");}
+                window.clear();
+                try {
+                    while (window.position() == 0) {
+                        if (inflater.finished() || inflater.needsInput()) {
+                            throw new IOException("Snapshot payload is truncated");
+                        }
+                        inflater.inflate(window);
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Snapshot payload is corrupt", e);
+                }
+                window.flip();
+            }
+
+            long readVarint() throws IOException {
+                long value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    if (!window.hasRemaining()) {fill();}
+                    b = window.get();
+                    value |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                return value;
+            }
+
+            /**
+             * Read the next section of a block - a view of the mapped file, or a copy in a buffer reused per column
+             * @param column - index of the column the section holds
+             * @param length - int length of the section in bytes
+             * @return - ByteBuffer holding exactly the section
+             * @throws IOException - if the payload ends early or is corrupt
+             */
+            ByteBuffer readSection(int column, int length) throws IOException {
+                if (inflater == null) {
+                    if (window.remaining() < length) {throw new IOException("Snapshot payload is truncated");}
+                    ByteBuffer section = window.slice(window.position(), length);
+                    window.position(window.position() + length);
+                    return section;
+                }
+                if (sections[column] == null || sections[column].length < length) {
+                    sections[column] = new byte[Math.max(length, 1024)];
+                }
+                byte[] section = sections[column];
+                int read = 0;
+                while (read < length) {
+                    if (!window.hasRemaining()) {fill();}
+                    int count = Math.min(length - read, window.remaining());
+                    window.get(section, read, count);
+                    read += count;
+                }
+                return ByteBuffer.wrap(section, 0, length);
+            }
+
+            /**
+             * Check that the whole payload was read - skipping whatever is left, as verify does
+             * @param skip - true to read past the remaining bytes instead of requiring there are none
+             * @throws IOException - if the payload is shorter or longer than its header says, or is corrupt
+             */
+            void finish(boolean skip) throws IOException {
+                if (skip) {
+                    if (inflater == null) {
+                        window.position(window.limit());
+                    } else {
+                        while (!inflater.finished()) {fill();}
+                        window.position(window.limit());
+                    }
+                }
+                long consumed = inflater == null ? window.position() : inflater.getBytesWritten() - window.remaining();
+                if (window.hasRemaining() || (inflater != null && !inflater.finished()) || consumed != rawLength) {
+                    throw new IOException("Snapshot payload length does not match its header");
+                }
+            }
+
+            @Override
+            public void close() {
+                if (inflater != null) {inflater.end();}
+            }
+        }
+
+        private final DbClient client;
+
+        /**
+         * Class constructor
+         * @param client - DbClient of the database to export from or import into
+         */
+        public DatasetSnapshot(DbClient client) {
+            this.client = client;
+        }
+
+        /**
+         * Export the three tables to a snapshot file.  Rows are streamed from the result sets straight into the
+         * mapped file, so memory use does not grow with the size of the tables.
+         * @param path - Path of the snapshot file, replaced if it exists
+         * @param compress - true to deflate the payload
+         * @return - long of the number of rows written
+         * @throws IOException - if the file cannot be written
+         * @throws SQLException - if the tables cannot be read
+         */
+        long export(Path path, boolean compress) throws IOException, SQLException {
+            long rows = 0;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 MappedWriter out = new MappedWriter(channel, compress);
+                 Connection con = client.getConnection()
+            ) {
+                for (int table = 0; table < TABLES.length; table++) {
+                    rows += exportTable(con, SELECTS[table], table > 0, out);
+                }
+                out.finish();
+            }
+            return rows;
+        }
+
+        private long exportTable(Connection con, String query, boolean hasParent, MappedWriter out)
+                throws SQLException, IOException {
+            ByteSink[] columns = new ByteSink[COLUMNS];
+            for (int column = 0; column < COLUMNS; column++) {
+                columns[column] = new ByteSink();
+            }
+            long rows = 0;
+            int blockRows = 0;
+            int previousId = 0;
+            try (Statement statement = con.createStatement()) {
+                statement.setFetchSize(BATCH_SIZE);
+                try (ResultSet resultSet = statement.executeQuery(query)) {
+                    while (resultSet.next()) {
+                        int id = resultSet.getInt(1);
+                        columns[0].putVarint(id - previousId);
+                        previousId = id;
+                        if (hasParent) {
+                            columns[1].putVarint(resultSet.getInt(3));
+                        }
+                        byte[] name = resultSet.getString(2).getBytes(StandardCharsets.UTF_8);
+                        columns[2].putVarint(name.length);
+                        columns[3].putBytes(name);
+                        rows++;
+                        if (++blockRows == BLOCK_ROWS) {
+                            writeBlock(out, blockRows, columns);
+                            blockRows = 0;
+                        }
+                    }
+                }
+            }
+            if (blockRows > 0) {
+                writeBlock(out, blockRows, columns);
+            }
+            out.putVarint(0);
+            return rows;
+        }
+
+        private void writeBlock(MappedWriter out, int blockRows, ByteSink[] columns) throws IOException {
+            out.putVarint(blockRows);
+            for (ByteSink column : columns) {
+                out.putVarint(column.size);
+            }
+            for (ByteSink column : columns) {
+                out.putBytes(column.bytes, column.size);
+                column.size = 0;
+            }
+        }
+
+        /**
+         * Map a snapshot file, check its header and the checksum of the stored bytes, and open a reader on the
+         * payload - a deflated payload is inflated as it is read, never all at once
+         * @param path - Path of the snapshot file
+         * @return - PayloadReader positioned at the start of the payload
+         * @throws IOException - if the file cannot be read, is not a snapshot or fails the checksum
+         */
+        private PayloadReader openPayload(Path path) throws IOException {
+            MappedByteBuffer in;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.get() != VERSION) {
+                throw new IOException("Not a car sharing snapshot: " + path);
+            }
+            byte flags = in.get();
+            long checksum = in.getLong();
+            int storedLength = in.getInt();
+            int rawLength = in.getInt();
+            if (in.remaining() != storedLength) {
+                throw new IOException("Snapshot is truncated: " + path);
+            }
+            ByteBuffer stored = in.slice();
+            CRC32C crc = new CRC32C();
+            crc.update(stored.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException("Snapshot checksum mismatch: " + path);
+            }
+            return new PayloadReader(stored, (flags & FLAG_DEFLATE) != 0, rawLength);
+        }
+
+        /**
+         * Check a snapshot file's header, checksum and payload length without importing it
+         * @param path - Path of the snapshot file
+         * @throws IOException - describing why the snapshot cannot be restored
+         */
+        void verify(Path path) throws IOException {
+            try (PayloadReader payload = openPayload(path)) {
+                payload.finish(true);
+            }
+        }
+
+        /**
+         * Check that the tables hold no rows, so a restore cannot collide with existing ids or names
+         * @throws SQLException - if the tables cannot be read
+         * @throws IllegalStateException - if any of the tables has rows
+         */
+        void checkEmpty() throws SQLException {
+            try (Connection con = client.getConnection();
+                 Statement statement = con.createStatement()
+            ) {
+                for (String table : TABLES) {
+                    try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+                        resultSet.next();
+                        if (resultSet.getLong(1) > 0) {
+                            throw new IllegalStateException("Cannot import a snapshot: table '" + table +
+                                    "' already has " + resultSet.getLong(1) + " rows");
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Import a snapshot into a fresh database - the tables must exist and be empty.  Rows are inserted with
+         * batched prepared statements in a single transaction with referential checks off and the UNIQUE name
+         * constraints dropped, which are added back once the rows are in (building the index over the loaded
+         * rows is cheaper than checking every insert).  The id sequences are then moved past the imported ids.
+         * H2 commits on every DDL statement, so a failed import empties the tables again rather than relying
+         * on the rollback alone.
+         * @param path - Path of the snapshot file
+         * @return - long of the number of rows imported
+         * @throws IOException - if the file cannot be read or fails the checksum
+         * @throws SQLException - if the rows cannot be inserted or the snapshot has duplicate names
+         */
+        long restore(Path path) throws IOException, SQLException {
+            checkEmpty();
+            long rows = 0;
+            try (PayloadReader payload = openPayload(path);
+                 Connection con = client.getConnection();
+                 Statement statement = con.createStatement()
+            ) {
+                List<String[]> dropped = new ArrayList<>();
+                con.setAutoCommit(false);
+                statement.execute("SET REFERENTIAL_INTEGRITY FALSE");
+                try {
+                    for (String table : TABLES) {
+                        for (String constraint : uniqueNameConstraints(statement, table)) {
+                            statement.execute(String.format(DROP_CONSTRAINT, table, constraint));
+                            dropped.add(new String[]{table, constraint});
+                        }
+                    }
+                    for (int table = 0; table < TABLES.length; table++) {
+                        rows += restoreTable(con, table, payload);
+                    }
+                    payload.finish(false);
+                    con.commit();
+                    while (!dropped.isEmpty()) {
+                        String[] constraint = dropped.get(0);
+                        statement.execute(String.format(ADD_UNIQUE_NAME, constraint[0], constraint[1]));
+                        dropped.remove(0);
+                    }
+                    for (String table : TABLES) {
+                        restartId(statement, table);
+                    }
+                } catch (IOException | SQLException | RuntimeException e) {
+                    con.rollback();
+                    // the tables were empty before the import
+                    for (String table : TABLES) {
+                        statement.execute("DELETE FROM " + table);
+                    }
+                    con.commit();
+                    throw e;
+                } finally {
+                    for (String[] constraint : dropped) {
+                        statement.execute(String.format(ADD_UNIQUE_NAME, constraint[0], constraint[1]));
+                    }
+                    statement.execute("SET REFERENTIAL_INTEGRITY TRUE");
+                    con.setAutoCommit(true);
+                }
+            }
+            return rows;
+        }
+
+        private List<String> uniqueNameConstraints(Statement statement, String table) throws SQLException {
+            List<String> constraints = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery(
+                    String.format(UNIQUE_NAMES, table.toUpperCase(Locale.ROOT)))) {
+                while (resultSet.next()) {
+                    constraints.add(resultSet.getString(1));
+                }
+            }
+            return constraints;
+        }
+
+        private void restartId(Statement statement, String table) throws SQLException {
+            int maxId;
+            try (ResultSet resultSet = statement.executeQuery(String.format(MAX_ID, table))) {
+                resultSet.next();
+                maxId = resultSet.getInt(1);
+            }
+            if (maxId > 0) {
+                statement.execute(String.format(RESTART_ID, table, maxId + 1));
+            }
+        }
+
+        private long restoreTable(Connection con, int table, PayloadReader payload)
+                throws SQLException, IOException {
+            long rows = 0;
+            int id = 0;
+            byte[] name = new byte[256];
+            int[] lengths = new int[COLUMNS];
+            ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+            try (PreparedStatement insert = con.prepareStatement(INSERTS[table])) {
+                for (int blockRows = (int) payload.readVarint(); blockRows != 0;
+                     blockRows = (int) payload.readVarint()) {
+                    for (int column = 0; column < COLUMNS; column++) {
+                        lengths[column] = (int) payload.readVarint();
+                    }
+                    for (int column = 0; column < COLUMNS; column++) {
+                        columns[column] = payload.readSection(column, lengths[column]);
+                    }
+                    for (int row = 0; row < blockRows; row++) {
+                        id += (int) readVarint(columns[0]);
+                        int nameLength = (int) readVarint(columns[2]);
+                        if (nameLength > name.length) {name = new byte[nameLength];}
+                        columns[3].get(name, 0, nameLength);
+                        insert.setInt(1, id);
+                        insert.setString(2, new String(name, 0, nameLength, StandardCharsets.UTF_8));
+                        if (table > 0) {
+                            int parent = (int) readVarint(columns[1]);
+                            if (parent == 0) {
+                                insert.setNull(3, Types.INTEGER);
+                            } else {
+                                insert.setInt(3, parent);
+                            }
+                        }
+                        insert.addBatch();
+                        if (++rows % BATCH_SIZE == 0) {
+                            insert.executeBatch();
+                        }
+                    }
+                }
+                insert.executeBatch();
+            }
+            return rows;
+        }
+
+        private long readVarint(ByteBuffer buffer) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Open-addressing hash map from positive int keys to int values with no boxing.  Keys and values are stored
+     *  side by side in one IntBuffer - on the heap or off-heap (direct) - probed linearly and kept at most half
+     *  full.  Key 0 marks a free slot and get returns 0 for a missing key, matching the "no car" convention of the
+     *  customer table.
+     */
+    public class IntIntMap {
+        private final boolean offHeap;
+        private IntBuffer slots;
+        private int mask;
+        private int size = 0;
+
+        /**
+         * Constructor for IntIntMap
+         * @param expected - number of entries expected, used to size the table
+         * @param offHeap - true to store the table in a direct (off-heap) buffer
+         */
+        public IntIntMap(int expected, boolean offHeap) {
+            this.offHeap = offHeap;
+            allocate(Integer.highestOneBit(Math.max(8, expected * 2 - 1)) << 1);
+        }
+
+        private void allocate(int capacity) {
+            slots = offHeap
+                    ? ByteBuffer.allocateDirect(capacity * 2 * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer()
+                    : IntBuffer.allocate(capacity * 2);
+            mask = capacity - 1;
+            size = 0;
+        }
+
+        private int slotOf(int key) {
+            int hash = key * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        /**
+         * Get the value of a key
+         * @param key - positive integer key
+         * @return - int value or 0 if the key is missing
+         */
+        int get(int key) {
+            for (int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+                int found = slots.get(slot * 2);
+                if (found == key) {return slots.get(slot * 2 + 1);}
+                if (found == 0) {return 0;}
+            }
+        }
+
+        /**
+         * Set the value of a key
+         * @param key - positive integer key
+         * @param value - int value
+         */
+        void put(int key, int value) {
+            if (key <= 0) {throw new IllegalArgumentException("Keys must be positive: " + key);}
+            if ((size + 1) * 2 > mask + 1) {grow();}
+            int slot = slotOf(key);
+            while (true) {
+                int found = slots.get(slot * 2);
+                if (found == key) {
+                    slots.put(slot * 2 + 1, value);
+                    return;
+                }
+                if (found == 0) {
+                    slots.put(slot * 2, key);
+                    slots.put(slot * 2 + 1, value);
+                    size++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * Remove a key, shifting later entries of its probe run back so lookups never need tombstones
+         * @param key - positive integer key
+         * @return - int value removed or 0 if the key was missing
+         */
+        int remove(int key) {
+            int slot = slotOf(key);
+            while (true) {
+                int found = slots.get(slot * 2);
+                if (found == 0) {return 0;}
+                if (found == key) {break;}
+                slot = (slot + 1) & mask;
+            }
+            int removed = slots.get(slot * 2 + 1);
+            int gap = slot;
+            for (int next = (gap + 1) & mask; ; next = (next + 1) & mask) {
+                int key2 = slots.get(next * 2);
+                if (key2 == 0) {break;}
+                int home = slotOf(key2);
+                // move the entry into the gap unless its home slot lies cyclically in (gap, next]
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    slots.put(gap * 2, key2);
+                    slots.put(gap * 2 + 1, slots.get(next * 2 + 1));
+                    gap = next;
+                }
+            }
+            slots.put(gap * 2, 0);
+            slots.put(gap * 2 + 1, 0);
+            size--;
+            return removed;
+        }
+
+        private void grow() {
+            IntBuffer old = slots;
+            int oldCapacity = mask + 1;
+            allocate(oldCapacity * 2);
+            for (int slot = 0; slot < oldCapacity; slot++) {
+                int key = old.get(slot * 2);
+                if (key != 0) {put(key, old.get(slot * 2 + 1));}
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < slots.capacity(); i++) {
+                slots.put(i, 0);
+            }
+            size = 0;
+        }
+
+        int size() {return size;}
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  In-memory bidirectional index of which customer holds which car.  It is rebuilt from the customer table at
+     *  startup and kept current by IndexedCustomerDao, so rental-state checks in the menus need no database round
+     *  trip and allocate nothing.
+     */
+    public class RentalIndex {
+        private static final String SELECT_RENTALS = "SELECT id, rented_car_id FROM customer " +
+                "WHERE rented_car_id IS NOT NULL";
+
+        private final IntIntMap carByCustomer;
+        private final IntIntMap customerByCar;
+
+        /**
+         * Constructor for RentalIndex
+         * @param offHeap - true to keep both maps in direct (off-heap) buffers
+         */
+        public RentalIndex(boolean offHeap) {
+            this.carByCustomer = new IntIntMap(1024, offHeap);
+            this.customerByCar = new IntIntMap(1024, offHeap);
+        }
+
+        /**
+         * Reload the index from the customer table of every shard
+         * @param router - ShardRouter holding the databases
+         * @throws SQLException - if the customer table cannot be read
+         */
+        synchronized void rebuild(ShardRouter router) throws SQLException {
+            carByCustomer.clear();
+            customerByCar.clear();
+            for (int i = 0; i < router.size(); i++) {
+                try (Connection con = router.shard(i).getConnection();
+                     Statement statement = con.createStatement();
+                     ResultSet resultSet = statement.executeQuery(SELECT_RENTALS)
+                ) {
+                    while (resultSet.next()) {
+                        rent(resultSet.getInt(1), resultSet.getInt(2));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Getter for the car a customer holds
+         * @param customerId - integer id of the customer
+         * @return - int id of the car or 0 if the customer holds none
+         */
+        synchronized int carOf(int customerId) {return carByCustomer.get(customerId);}
+
+        /**
+         * Getter for the customer holding a car
+         * @param carId - integer id of the car
+         * @return - int id of the customer or 0 if the car is free
+         */
+        synchronized int customerOf(int carId) {return customerByCar.get(carId);}
+
+        synchronized void rent(int customerId, int carId) {
+            int previous = carByCustomer.get(customerId);
+            if (previous != 0) {customerByCar.remove(previous);}
+            carByCustomer.put(customerId, carId);
+            customerByCar.put(carId, customerId);
+        }
+
+        synchronized void returnCar(int customerId) {
+            int carId = carByCustomer.remove(customerId);
+            if (carId != 0) {customerByCar.remove(carId);}
+        }
+
+        synchronized int size() {return carByCustomer.size();}
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Class that keeps a RentalIndex current with the rent, return and delete writes of the customer DAO it wraps.
+     */
+    public class IndexedCustomerDao implements DeveloperDao {
+        private final DeveloperDao delegate;
+        private final RentalIndex index;
+
+        public IndexedCustomerDao(DeveloperDao delegate, RentalIndex index) {
+            this.delegate = delegate;
+            this.index = index;
+        }
+
+        @Override
+        public List<Developer> findAll() {return delegate.findAll();}
+
+        @Override
+        public Developer findById(int id) {return delegate.findById(id);}
+
+        @Override
+        public List<Developer> findByParentId(int id) {return delegate.findByParentId(id);}
+
+        @Override
+        public int add(Developer developer) {return delegate.add(developer);}
+
+        @Override
+        public boolean update(Developer developer) {
+            boolean updated = delegate.update(developer);
+            if (!updated) {
+                return false;
+            }
+            if (developer.getParent() == 0) {
+                index.returnCar(developer.getId());
+            } else {
+                index.rent(developer.getId(), developer.getParent());
+            }
+            return true;
+        }
+
+        @Override
+        public boolean deleteById(int id) {
+            boolean deleted = delegate.deleteById(id);
+            if (deleted) {index.returnCar(id);}
+            return deleted;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Fleet size, rented count and utilization of one company
+     */
+    public class CompanyUtilization {
+        private final int companyId;
+        private final String name;
+        private final long fleetSize;
+        private final long rented;
+
+        public CompanyUtilization(int companyId, String name, long fleetSize, long rented) {
+            this.companyId = companyId;
+            this.name = name;
+            this.fleetSize = fleetSize;
+            this.rented = rented;
+        }
+
+        int getCompanyId() {return companyId;}
+
+        String getName() {return name;}
+
+        long getFleetSize() {return fleetSize;}
+
+        long getRented() {return rented;}
+
+        /**
+         * Getter for the share of the fleet that is rented
+         * @return - double percentage from 0 to 100, 0 for an empty fleet
+         */
+        double getUtilization() {
+            return fleetSize == 0 ? 0 : rented * 100.0 / fleetSize;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     *  Fleet-wide utilization report built from one streamed scan of car joined to customer per shard.  Rows are
+     *  read into primitive chunks, each chunk is aggregated on a fork-join pool while the scan continues, and the
+     *  per-chunk long[] accumulators are summed into one row per company.
+     */
+    public class UtilizationReport {
+        private static final String SELECT_COMPANIES = "SELECT * FROM company ORDER BY id";
+        private static final String SCAN_RENTALS = "SELECT a.company_id, CASE WHEN b.id IS NULL THEN 0 ELSE 1 END " +
+                "FROM car a LEFT JOIN customer b ON a.id = b.rented_car_id";
+        private static final int CHUNK_SIZE = 64 * 1024;
+        private static final int SPLIT_THRESHOLD = 8 * 1024;
+
+        /**
+         *  Fork-join task that counts fleet (even slots) and rented cars (odd slots) per company over a chunk range
+         */
+        private class ChunkTask extends RecursiveTask<long[]> {
+            private static final long serialVersionUID = 1L;
+            private final int[] companyIds;
+            private final byte[] rented;
+            private final int from;
+            private final int to;
+            private final IntIntMap slots;
+            private final int companyCount;
+
+            ChunkTask(int[] companyIds, byte[] rented, int from, int to, IntIntMap slots, int companyCount) {
+                this.companyIds = companyIds;
+                this.rented = rented;
+                this.from = from;
+                this.to = to;
+                this.slots = slots;
+                this.companyCount = companyCount;
+            }
+
+            @Override
+            protected long[] compute() {
+                if (to - from > SPLIT_THRESHOLD) {
+                    int middle = (from + to) >>> 1;
+                    ChunkTask left = new ChunkTask(companyIds, rented, from, middle, slots, companyCount);
+                    left.fork();
+                    long[] right = new ChunkTask(companyIds, rented, middle, to, slots, companyCount).compute();
+                    long[] merged = left.join();
+                    for (int i = 0; i < merged.length; i++) {
+                        merged[i] += right[i];
+                    }
+                    return merged;
+                }
+                long[] totals = new long[companyCount * 2];
+                for (int i = from; i < to; i++) {
+                    int slot = slots.get(companyIds[i]) - 1;
+                    if (slot < 0) {continue;}
+                    totals[slot * 2]++;
+                    totals[slot * 2 + 1] += rented[i];
+                }
+                return totals;
+            }
+        }
+
+        private final ShardRouter router;
+        private final ForkJoinPool pool;
+
+        /**
+         * Class constructor
+         * @param router - ShardRouter holding the databases to scan
+         * @param pool - ForkJoinPool to aggregate on
+         */
+        public UtilizationReport(ShardRouter router, ForkJoinPool pool) {
+            this.router = router;
+            this.pool = pool;
+        }
+
+        /**
+         * Compute the utilization of every company
+         * @return - List of CompanyUtilization ordered by utilization then fleet size, highest first
+         * @throws SQLException - if the scan fails
+         */
+        List<CompanyUtilization> compute() throws SQLException {
+            // the company table is replicated, so shard 0 holds every company
+            List<Developer> companies = router.shard(0).selectForList(SELECT_COMPANIES, 2);
+            IntIntMap slots = new IntIntMap(companies.size(), false);
+            for (int i = 0; i < companies.size(); i++) {
+                slots.put(companies.get(i).getId(), i + 1);
+            }
+            int companyCount = companies.size();
+
+            // chunks are added up as they finish, so at most a few chunk arrays are alive at any time
+            long[] totals = new long[companyCount * 2];
+            int maxInFlight = pool.getParallelism() * 2;
+            Deque<ForkJoinTask<long[]>> chunks = new ArrayDeque<>();
+            for (int shard = 0; shard < router.size(); shard++) {
+                try (Connection con = router.shard(shard).getConnection();
+                     Statement statement = con.createStatement()
+                ) {
+                    statement.setFetchSize(CHUNK_SIZE);
+                    try (ResultSet resultSet = statement.executeQuery(SCAN_RENTALS)) {
+                        int[] companyIds = new int[CHUNK_SIZE];
+                        byte[] rented = new byte[CHUNK_SIZE];
+                        int count = 0;
+                        while (resultSet.next()) {
+                            companyIds[count] = resultSet.getInt(1);
+                            rented[count] = resultSet.getByte(2);
+                            if (++count == CHUNK_SIZE) {
+                                chunks.add(pool.submit(new ChunkTask(companyIds, rented, 0, count, slots,
+                                        companyCount)));
+                                while (!chunks.isEmpty()
+                                        && (chunks.peekFirst().isDone() || chunks.size() > maxInFlight)) {
+                                    addUp(totals, chunks.pollFirst().join());
+                                }
+                                companyIds = new int[CHUNK_SIZE];
+                                rented = new byte[CHUNK_SIZE];
+                                count = 0;
+                            }
+                        }
+                        if (count > 0) {
+                            chunks.add(pool.submit(new ChunkTask(companyIds, rented, 0, count, slots,
+                                    companyCount)));
+                        }
+                    }
+                }
+            }
+
+            while (!chunks.isEmpty()) {
+                addUp(totals, chunks.pollFirst().join());
+            }
+            List<CompanyUtilization> report = new ArrayList<>();
+            for (int i = 0; i < companyCount; i++) {
+                Developer company = companies.get(i);
+                report.add(new CompanyUtilization(company.getId(), company.getName(), totals[i * 2],
+                        totals[i * 2 + 1]));
+            }
+            report.sort(Comparator.comparingDouble(CompanyUtilization::getUtilization)
+                    .thenComparingLong(CompanyUtilization::getFleetSize).reversed()
+                    .thenComparingInt(CompanyUtilization::getCompanyId));
+            return report;
+        }
+
+        /**
+         * Write the report as CSV with a header line and a final TOTAL line
+         * @param report - List of CompanyUtilization from compute
+         * @param out - Writer to write to
+         */
+        void writeCsv(List<CompanyUtilization> report, PrintWriter out) {
+            out.println("company_id,company,fleet_size,rented,utilization_pct");
+            for (CompanyUtilization row : report) {
+                out.printf(Locale.ROOT, "%d,\"%s\",%d,%d,%.2f%n", row.getCompanyId(),
+                        row.getName().replace("\"", "\"\""), row.getFleetSize(), row.getRented(),
+                        row.getUtilization());
+            }
+            CompanyUtilization total = total(report);
+            out.printf(Locale.ROOT, ",TOTAL,%d,%d,%.2f%n", total.getFleetSize(), total.getRented(),
+                    total.getUtilization());
+            out.flush();
+        }
+
+        /**
+         * Write the report as a JSON object with the totals and the companies, highest utilization first
+         * @param report - List of CompanyUtilization from compute
+         * @param out - Writer to write to
+         */
+        void writeJson(List<CompanyUtilization> report, PrintWriter out) {
+            CompanyUtilization total = total(report);
+            out.printf(Locale.ROOT, "{\"fleet_size\":%d,\"rented\":%d,\"utilization_pct\":%.2f,\"companies\":[",
+                    total.getFleetSize(), total.getRented(), total.getUtilization());
+            for (int i = 0; i < report.size(); i++) {
+                CompanyUtilization row = report.get(i);
+                out.printf(Locale.ROOT, "%s{\"company_id\":%d,\"company\":\"%s\",\"fleet_size\":%d,\"rented\":%d," +
+                                "\"utilization_pct\":%.2f}", i == 0 ? "" : ",", row.getCompanyId(),
+                        jsonEscape(row.getName()), row.getFleetSize(), row.getRented(), row.getUtilization());
+            }
+            out.println("]}");
+            out.flush();
+        }
+
+        private void addUp(long[] totals, long[] partial) {
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += partial[i];
+            }
+        }
+
+        private CompanyUtilization total(List<CompanyUtilization> report) {
+            long fleet = 0;
+            long rented = 0;
+            for (CompanyUtilization row : report) {
+                fleet += row.getFleetSize();
+                rented += row.getRented();
+            }
+            return new CompanyUtilization(0, "TOTAL", fleet, rented);
+        }
+
+        private String jsonEscape(String text) {
+            StringBuilder escaped = new StringBuilder();
+            for (char c : text.toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    escaped.append('\\').append(c);
+                } else if (c < 0x20) {
+                    escaped.append(String.format("\\u%04x", (int) c));
+                } else {
+                    escaped.append(c);
+                }
+            }
+            return escaped.toString();
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Create the database connection and store dataSource connection in static variable for use elsewhere
+     */
+    class getDbClient {
+
+        public getDbClient(String[] args) {
+            // get command line argument if present to append to filename
+            String filename = "databaseName";
+            int shardCount = 1;
+            boolean pooled = false;
+            for (int i = 0; i < args.length - 1; i++) {
+                if (Objects.equals(args[i], "-databaseFileName")) {
+                    i++;
+                    filename = args[i];
+                } else if (Objects.equals(args[i], "-shards")) {
+                    i++;
+                    shardCount = Integer.parseInt(args[i]);
+                } else if (Objects.equals(args[i], "-poolSize")) {
+                    i++;
+                    connectionPoolSize = Integer.parseInt(args[i]);
+                    pooled = true;
+                }
+            }
+            String CONNECTION_URL = "jdbc:h2:./src/carsharing/db/";
+
+            /* Database credentials - NO CREDENTIALS
+            // private static final String USER = "sa";
+            // private static final String PASS = "";  */
+
+            // a single shard keeps the original file name, otherwise each shard gets its own local file
+            List<DbClient> shards = new ArrayList<>();
+            for (int i = 0; i < shardCount; i++) {
+                JdbcDataSource dataSource = new JdbcDataSource();
+                dataSource.setUrl(CONNECTION_URL + filename + (shardCount > 1 ? "_shard" + i : ""));
+                if (pooled) {
+                    JdbcConnectionPool pool = JdbcConnectionPool.create(dataSource);
+                    pool.setMaxConnections(connectionPoolSize);
+                    shards.add(new DbClient(pool));
+                } else {
+                    shards.add(new DbClient(dataSource));
+                }
+            }
+
+            dbClient = shards.get(0);
+            shardRouter = new ShardRouter(shards);
+            if (shardCount > 1) {
+                shardRouter.checkLayout();
+            }
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**  Main function for running program (singleton instantiation)
+     *
+     */
+    public static void main(String[] args) {
+        Main prog = new Main();
+        prog.run(args);
+    }
+
+    /**
+     * Create DbClient, DAO objects and run main menu
+     * @param args - sys args for getting db filename and shard count (if present in args)
+     */
+    void run (String[] args) {
+        new getDbClient(args);
+        if (shardRouter.size() > 1) {
+            companyDao = new ShardedCompanyDao(shardRouter);
+            carDao = new ShardedCarDao(shardRouter);
+            customerDao = new ShardedCustomerDao(shardRouter);
+            rentalDao = new ShardedRentalDao(shardRouter, carDao);
+        } else {
+            companyDao = new CompanyDao();
+            carDao = new CarDao();
+            customerDao = new CustomerDao();
+            rentalDao = new RentalDao();
+        }
+        if (transferSnapshots(args)) {return;}
+        String reportFormat = argValue(args, "-report");
+        if (reportFormat != null) {
+            if (!writeReport(reportFormat, argValue(args, "-reportOut"))) {System.exit(1);}
+            return;
+        }
+        String indexMode = argValue(args, "-rentalIndex");
+        if (indexMode != null) {
+            rentalIndex = new RentalIndex(indexMode.equals("offheap"));
+            try {
+                rentalIndex.rebuild(shardRouter);
+                customerDao = new IndexedCustomerDao(customerDao, rentalIndex);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                System.out.println("The rental index could not be built - rental checks use the database");
+                rentalIndex = null;
+            }
+        }
+        String changeLog = argValue(args, "-changeLog");
+        if (changeLog != null) {
+            ChangeLogFile logFile;
+            try {
+                logFile = new ChangeLogFile(Path.of(changeLog));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("The change log '" + changeLog + "' could not be opened!");
+                return;
+            }
+            changeEvents = new ChangeEventBus(8192, 256, false, logFile.nextSequence());
+            changeEvents.subscribe(logFile);
+            companyDao = new PublishingDao(companyDao, "company", changeEvents);
+            carDao = new PublishingDao(carDao, "car", changeEvents);
+            customerPublisher = new PublishingCustomerDao(customerDao, changeEvents);
+            customerDao = customerPublisher;
+        }
+        String staleness = argValue(args, "-snapshot");
+        if (staleness != null) {
+            snapshotStore = new SnapshotStore(shardRouter, Long.parseLong(staleness));
+            companyDao = new SnapshotCompanyDao(companyDao, snapshotStore);
+            carDao = new SnapshotCarDao(carDao, snapshotStore);
+            rentalDao = new SnapshotRentalDao(rentalDao, snapshotStore);
+        }
+        String asyncTimeout = argValue(args, "-async");
+        if (asyncTimeout != null) {
+            asyncTimeoutMillis = Long.parseLong(asyncTimeout);
+            asyncExecutor = new AsyncDaoExecutor(connectionPoolSize * shardRouter.size(), 256);
+            asyncCompanyDao = new AsyncDao(companyDao, asyncExecutor, asyncTimeoutMillis);
+            asyncCarDao = new AsyncDao(carDao, asyncExecutor, asyncTimeoutMillis);
+            asyncCustomerDao = new AsyncDao(customerDao, asyncExecutor, asyncTimeoutMillis);
+        }
+        if (Arrays.asList(args).contains("-waitlist")) {
+            waitlist = new RentalWaitlist();
+        }
+        menuMain();
+        if (waitlist != null) {
+            System.out.println("Waitlist: " + waitlist.getTotalDepth() + " waiting, " + waitlist.getServed() +
+                    " served, average wait " + waitlist.getAverageWaitMillis() + " ms, longest wait " +
+                    waitlist.getMaxWaitMillis() + " ms");
+        }
+        if (asyncExecutor != null) {
+            System.out.println("Async DAO: " + asyncExecutor.getCompleted() + " completed, " +
+                    asyncExecutor.getRejected() + " rejected, " + asyncExecutor.getTimedOut() + " timed out, " +
+                    asyncExecutor.getQueueDepth() + " queued");
+        }
+        if (changeEvents != null) {changeEvents.close();}
+    }
+
+    /**
+     * Find the value following a command line flag
+     * @param args - sys args
+     * @param name - flag name including the leading dash
+     * @return - String value of the flag or null if not present
+     */
+    static String argValue(String[] args, String name) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (Objects.equals(args[i], name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check the primary database for a customer renting a car - used to validate rentals listed from a snapshot.
+     * Answered by the rental index when enabled, since it is kept in step with every customer write.
+     * @param carId - integer id of the car
+     * @return - true if a customer holds the car on the primary
+     */
+    boolean isRentedOnPrimary(int carId) {
+        if (rentalIndex != null) {
+            return rentalIndex.customerOf(carId) != 0;
+        }
+        DbClient client = shardRouter.shard(shardRouter.shardForCar(carId));
+        return !client.selectForList("SELECT * FROM customer WHERE rented_car_id = " + carId, 3).isEmpty();
+    }
+
+    /**
+     * Tiered menu system that exits only on user input = 0
+     */
+    void menuMain () {
+        int option = -1;
+        while (option != 0) {
+            System.out.println("\n1. Log in as a manager");
+            System.out.println("2. Log in as a customer");
+            System.out.println("3. Create a customer");
+            System.out.println("0. Exit");
+            option = scanner.nextInt();
+            switch (option) {
+                case 1 -> companyMenu();
+                case 2 -> customerMenu();
+                case 3 -> {
+                    System.out.println("\nEnter the customer name: ");
+                    String strip = scanner.nextLine();
+                    String name = scanner.nextLine();
+                    customerDao.add(new Developer(name));
+                }
+            }
+        }
+    }
+
+    /**
+     * Company menu options - list/create companies
+     */
+    void companyMenu() {
+        int action = -1;
+        while (action != 0) {
+            System.out.println("\n1. Company list");
+            System.out.println("2. Create a company");
+            System.out.println("0. Back");
+            action = scanner.nextInt();
+            switch (action) {
+                case 1 -> {carMenu();
+                }
+                case 2 -> {
+                    System.out.println("\nEnter the company name: ");
+                    String strip = scanner.nextLine();
+                    String name = scanner.nextLine();
+                    companyDao.add(new Developer(name));
+                }
+            }
+        }
+    }
+
+    /**
+     * Car menu options - list/create cars linked to a company
+     */
+    void carMenu() {
+        List<Developer> companies = companyDao.findAll();
+        if (companies.isEmpty()) {return;}
+        int option1 = scanner.nextInt();
+        if (option1 == 0) {return;}
+        Developer company = companies.get(option1 - 1);
+        int option2 = -1;
+        System.out.println("\n'" + company.getName() + "' company");
+        while (option2 != 0) {
+            System.out.println("1. Car list");
+            System.out.println("2. Create a car");
+            System.out.println("0. Back");
+            option2 = scanner.nextInt();
+            switch (option2) {
+                case 0 -> {return;}
+                case 1 -> {
+                    carDao.findByParentId(company.getId());
+                    System.out.println(); }
+                case 2 -> {
+                    System.out.println("\nEnter the car name: ");
+                    String strip = scanner.nextLine();
+                    String name = scanner.nextLine();
+                    carDao.add(new Developer(name, company.getId()));
+                    if (waitlist != null) {waitlist.drain(company.getId());}
+                    System.out.println();}
+            }
+        }
+    }
+
+    /**
+     * Customer menu options - rent/return/list cars from specific companies
+     */
+    void customerMenu() {
+        List<Developer> customerList = customerDao.findAll();
+        if (customerList.isEmpty()) {return;}
+        int input = scanner.nextInt();
+        if (input == 0) {return;}
+        Developer customer = customerList.get(input - 1);
+        int customerId = customer.getId();
+        if (waitlist != null) {
+            String notification = waitlist.takeNotification(customerId);
+            if (notification != null) {
+                System.out.println("\n" + notification);
+            }
+        }
+        int option2 = -1;
+        while (option2 != 0) {
+            System.out.println("\n1. Rent a car");
+            System.out.println("2. Return a rented car");
+            System.out.println("3. My rented car");
+            System.out.println("0. Back");
+            option2 = scanner.nextInt();
+            switch (option2) {
+                case 1 -> rentAcar(customer);
+                case 2 -> {
+                    int rentedCarId = rentedCarOf(customerId);
+                    if (rentedCarId == 0) {
+                        System.out.println("You didn't rent a car!");
+                        break;
+                    } else {
+                        if (customerPublisher != null) {
+                            customerPublisher.returnCar(customer, rentedCarId);
+                        } else {
+                            customerDao.update(new Developer(customerId, customer.getName(), 0));
+                        }
+                        Developer returnedCar = snapshotStore != null || waitlist != null
+                                ? carDao.findById(rentedCarId) : null;
+                        if (returnedCar != null) {
+                            int companyId = returnedCar.getParent();
+                            // a car handed to a waiter is patched into the snapshot by the drain
+                            int handed = waitlist != null ? waitlist.drain(companyId) : 0;
+                            if (handed == 0 && snapshotStore != null) {snapshotStore.refreshAvailableCars(companyId);}
+                        }
+                    }
+                        System.out.println("You've returned a rented car!");
+                    }
+                case 3 -> {
+                    if (asyncExecutor != null) {
+                        showRentedCarAsync(customerId);
+                        break;
+                    }
+                    int rentedCarId = rentedCarOf(customerId);
+                    if (rentedCarId == 0) {
+                        System.out.println("You didn't rent a car!");
+                    } else {
+                        Developer car = carDao.findById(rentedCarId);
+                        Developer company = companyDao.findById(car.getParent());
+                        System.out.println("\nYour rented car:");
+                        System.out.println(car.getName());
+                        System.out.println("Company:");
+                        System.out.println(company.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rental-state check - answered by the rental index when enabled, otherwise read from the customer table
+     * @param customerId - integer id of the customer
+     * @return - int id of the customer's rented car or 0 if none
+     */
+    int rentedCarOf(int customerId) {
+        if (rentalIndex != null) {
+            return rentalIndex.carOf(customerId);
+        }
+        Developer customer = customerDao.findById(customerId);
+        return customer == null ? 0 : customer.getParent();
+    }
+
+    /**
+     * Rent-a-car menu - to rent a car from a specific company listing only un-rented cars
+     * @param customer - Developer object of the customer renting
+     */
+    void rentAcar(Developer customer) {
+        if (rentedCarOf(customer.getId()) == 0) {
+            List<Developer> companies = companyDao.findAll();
+            int option = scanner.nextInt();
+            if (option == 0) {return;}
+            Developer selectedCompany = companies.get(option - 1);
+
+            List<Developer> cars = rentalDao.findByParentId(selectedCompany.getId());
+            if (cars.isEmpty()) {
+                if (waitlist != null) {joinWaitlist(selectedCompany, customer);}
+                return;
+            }
+            option = scanner.nextInt();
+            if (option == 0) {return;}
+            Developer selectedCar = cars.get(option - 1);
+            if (asyncExecutor != null) {
+                if (!checkRentAsync(customer, selectedCar)) {return;}
+            } else if (snapshotStore != null && isRentedOnPrimary(selectedCar.getId())) {
+                System.out.println("'" + selectedCar.getName() + "' was just rented by someone else!");
+                snapshotStore.refreshAvailableCars(selectedCompany.getId());
+                return;
+            }
+            if (waitlist == null) {
+                customerDao.update(new Developer(customer.getId(), customer.getName(), selectedCar.getId()));
+            } else if (!waitlist.rent(selectedCompany.getId(), customer, selectedCar)) {
+                System.out.println("'" + selectedCar.getName() + "' was just rented by someone else!");
+                return;
+            }
+            if (snapshotStore != null) {snapshotStore.refreshAvailableCars(selectedCompany.getId());}
+            System.out.println("You rented '" + selectedCar.getName() + "'");
+        } else {
+            System.out.println("You've already rented a car!");
+        }
+    }
+
+    /**
+     * Offer a customer a place on a sold out company's waitlist
+     * @param company - Developer object of the sold out company
+     * @param customer - Developer object of the customer
+     */
+    void joinWaitlist(Developer company, Developer customer) {
+        System.out.println("\n1. Join the waitlist for '" + company.getName() + "'");
+        System.out.println("0. Back");
+        if (scanner.nextInt() != 1) {return;}
+        RentalWaitlist.Waiter waiter = waitlist.join(company.getId(), customer.getId());
+        CompletableFuture<Developer> assigned = waiter.getAssigned();
+        Developer car = assigned.isCancelled() ? null : assigned.getNow(null);
+        if (assigned.isCancelled()) {
+            waitlist.takeNotification(customer.getId());
+            System.out.println("You could not join the waitlist!");
+        } else if (car != null) {
+            waitlist.takeNotification(customer.getId());
+            System.out.println("'" + car.getName() + "' was free after all - you rented it!");
+        } else {
+            System.out.println("You are number " + waitlist.positionOf(company.getId(), customer.getId()) +
+                    " on the waitlist!");
+        }
+    }
+
+    /**
+     * "My rented car" using the async DAOs - the customer, car and company reads are chained on the executor and
+     * the menu only waits once for the whole pipeline. The customer read is skipped when the rental index is on.
+     * @param customerId - integer id of the customer
+     */
+    void showRentedCarAsync(int customerId) {
+        CompletableFuture<Integer> carId = rentalIndex != null
+                ? CompletableFuture.completedFuture(rentalIndex.carOf(customerId))
+                : asyncCustomerDao.findById(customerId).thenApply(customer ->
+                        customer == null ? 0 : customer.getParent());
+        CompletableFuture<Developer> car = carId.thenCompose(id ->
+                id == 0 ? CompletableFuture.completedFuture(null) : asyncCarDao.findById(id));
+        CompletableFuture<Developer> company = car.thenCompose(found ->
+                found == null ? CompletableFuture.completedFuture(null) : asyncCompanyDao.findById(found.getParent()));
+        try {
+            Developer rentedCar = car.join();
+            Developer rentedCompany = company.join();
+            if (rentedCar == null || rentedCompany == null) {
+                System.out.println("You didn't rent a car!");
+            } else {
+                System.out.println("\nYour rented car:");
+                System.out.println(rentedCar.getName());
+                System.out.println("Company:");
+                System.out.println(rentedCompany.getName());
+            }
+        } catch (CompletionException e) {
+            System.out.println("The rented car lookup failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * Check (-verifySnapshot <file>), import (-importSnapshot <file>) or export (-exportSnapshot <file>) the
+     * dataset - with several shards each shard uses its own file with a ".shard<i>" suffix.  -compressSnapshot
+     * deflates exported snapshots.
+     * @param args - sys args
+     * @return - true if any snapshot option was given, so the program ends instead of showing the menu
+     */
+    boolean transferSnapshots(String[] args) {
+        String verifyPath = argValue(args, "-verifySnapshot");
+        String exportPath = argValue(args, "-exportSnapshot");
+        String importPath = argValue(args, "-importSnapshot");
+        boolean compress = Arrays.asList(args).contains("-compressSnapshot");
+        if (verifyPath == null && exportPath == null && importPath == null) {return false;}
+        if (verifyPath != null) {
+            for (int i = 0; i < shardRouter.size(); i++) {
+                Path path = Path.of(verifyPath + (shardRouter.size() > 1 ? ".shard" + i : ""));
+                try {
+                    new DatasetSnapshot(shardRouter.shard(i)).verify(path);
+                    System.out.println("The snapshot is valid: " + path);
+                } catch (IOException e) {
+                    System.out.println("The snapshot cannot be restored: " + e.getMessage());
+                }
+            }
+        }
+        if (importPath != null) {
+            // refuse before touching any shard rather than leave some shards imported
+            for (int i = 0; i < shardRouter.size(); i++) {
+                try {
+                    new DatasetSnapshot(shardRouter.shard(i)).checkEmpty();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    return true;
+                } catch (IllegalStateException e) {
+                    System.out.println(e.getMessage());
+                    return true;
+                }
+            }
+        }
+        for (int i = 0; i < shardRouter.size(); i++) {
+            String suffix = shardRouter.size() > 1 ? ".shard" + i : "";
+            DatasetSnapshot snapshot = new DatasetSnapshot(shardRouter.shard(i));
+            try {
+                if (importPath != null) {
+                    long rows = snapshot.restore(Path.of(importPath + suffix));
+                    System.out.println("The snapshot was imported: " + rows + " rows");
+                }
+                if (exportPath != null) {
+                    long rows = snapshot.export(Path.of(exportPath + suffix), compress);
+                    System.out.println("The snapshot was exported: " + rows + " rows");
+                }
+            } catch (IOException | SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the fleet utilization report (-report csv|json) to a file (-reportOut <file>) or the console
+     * @param format - "csv" or "json"
+     * @param outPath - path of the file to write or null for the console
+     * @return - true if the report was written, false for an unknown format or a failed scan or write
+     */
+    boolean writeReport(String format, String outPath) {
+        if (!format.equals("csv") && !format.equals("json")) {
+            System.out.println("Unknown report format '" + format + "' - use csv or json");
+            return false;
+        }
+        UtilizationReport report = new UtilizationReport(shardRouter, ForkJoinPool.commonPool());
+        PrintWriter out = null;
+        try {
+            List<CompanyUtilization> rows = report.compute();
+            out = outPath == null
+                    ? new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                    : new PrintWriter(Files.newBufferedWriter(Path.of(outPath), StandardCharsets.UTF_8));
+            if (format.equals("json")) {
+                report.writeJson(rows, out);
+            } else {
+                report.writeCsv(rows, out);
+            }
+            return !out.checkError();
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            // the console stream stays open for the rest of the program
+            if (out != null && outPath != null) {out.close();}
+        }
+    }
+
+    /**
+     * Re-check a rental right before it is written - whether the car is still free and whether the customer got a
+     * car meanwhile are independent reads, so they run in parallel on the async executor
+     * @param customer - Developer object of the customer renting
+     * @param car - Developer object of the car to rent
+     * @return - true if the rental can go ahead
+     */
+    boolean checkRentAsync(Developer customer, Developer car) {
+        CompletableFuture<Boolean> carTaken = asyncExecutor.submit(() -> isRentedOnPrimary(car.getId()),
+                asyncTimeoutMillis);
+        CompletableFuture<Integer> heldCar = asyncExecutor.submit(() -> rentedCarOf(customer.getId()),
+                asyncTimeoutMillis);
+        try {
+            if (heldCar.join() != 0) {
+                System.out.println("You've already rented a car!");
+                return false;
+            }
+            if (carTaken.join()) {
+                System.out.println("'" + car.getName() + "' was just rented by someone else!");
+                if (snapshotStore != null) {snapshotStore.refreshAvailableCars(car.getParent());}
+                return false;
+            }
+            return true;
+        } catch (CompletionException e) {
+            System.out.println("The rental check failed: " + e.getCause());
+            return false;
         }
     }
 